@@ -0,0 +1,95 @@
+import util.Timeouts;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+// Swaps buffers between the two sides of a fixed set of channels, like a producer handing full buffers to a consumer
+// that hands back empty ones. Channels are allocated up front and an exchange allocates nothing, so a pipeline
+// recycling its buffers through it runs without garbage. Waiters spin for a while before parking.
+public class BufferExchanger {
+    private static final int EMPTY = 0, OFFERING = 1, WAITING = 2, TAKING = 3, DONE = 4;
+    private static final int SPINS = 1 << 10;
+
+    private static class Channel {
+        final AtomicInteger state = new AtomicInteger(EMPTY);
+        // Written before the state moves on, so whoever sees the new state sees them
+        ByteBuffer offered;
+        ByteBuffer reply;
+        Thread waiter;
+    }
+
+    private final Channel[] channels;
+
+    public BufferExchanger(int channels) {
+        if(channels <= 0) throw new IllegalArgumentException("Channels must be positive!");
+        this.channels = new Channel[channels];
+        for(int i = 0; i < channels; i++) this.channels[i] = new Channel();
+    }
+
+    // Returns the buffer of the other side, or null if nobody came within the timeout
+    public ByteBuffer exchange(int channel, ByteBuffer buffer, int timeoutMs) throws InterruptedException {
+        if(channel < 0 || channel >= channels.length) throw new IllegalArgumentException("Unknown channel " + channel + "!");
+        if(buffer == null) throw new IllegalArgumentException("Buffer can't be null!");
+        final Channel ch = channels[channel];
+        final long limit = Timeouts.start(timeoutMs);
+        for(int spins = 0; ; ) {
+            final int state = ch.state.get();
+            if(state == WAITING && ch.state.compareAndSet(WAITING, TAKING)) {
+                final ByteBuffer other = ch.offered;
+                final Thread waiter = ch.waiter;
+                ch.reply = buffer;
+                ch.state.set(DONE);
+                LockSupport.unpark(waiter);
+                return other;
+            }
+            if(state == EMPTY && !Timeouts.isTimeout(Timeouts.remaining(limit))) {
+                if(ch.state.compareAndSet(EMPTY, OFFERING)) {
+                    ch.offered = buffer;
+                    ch.waiter = Thread.currentThread();
+                    ch.state.set(WAITING);
+                    return await(ch, limit);
+                }
+                continue;
+            }
+            if(Timeouts.isTimeout(Timeouts.remaining(limit))) return null;
+            // Another swap is half way, which only takes a few instructions unless its thread was descheduled
+            if(++spins < SPINS) Thread.onSpinWait();
+            else Thread.yield();
+        }
+    }
+
+    public ByteBuffer exchange(int channel, ByteBuffer buffer) throws InterruptedException {
+        return exchange(channel, buffer, Integer.MAX_VALUE);
+    }
+
+    private ByteBuffer await(Channel ch, long limit) throws InterruptedException {
+        for(int spins = 0; ch.state.get() != DONE; ) {
+            if(spins < SPINS) {
+                spins++;
+                Thread.onSpinWait();
+                continue;
+            }
+            final long remaining = Timeouts.remaining(limit);
+            final boolean interrupted = Thread.interrupted();
+            if(interrupted || Timeouts.isTimeout(remaining)) {
+                if(ch.state.compareAndSet(WAITING, EMPTY)) {
+                    if(interrupted) throw new InterruptedException();
+                    return null;
+                }
+                // Taken, the other side is about to hand its buffer over
+                while(ch.state.get() != DONE) Thread.onSpinWait();
+                if(interrupted) Thread.currentThread().interrupt();
+                break;
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remaining));
+        }
+        final ByteBuffer other = ch.reply;
+        // Not kept reachable from the channel while it is idle
+        ch.offered = ch.reply = null;
+        ch.waiter = null;
+        ch.state.set(EMPTY);
+        return other;
+    }
+}
@@ -0,0 +1,361 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channel;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Forwards events of selected types between EventBus instances, possibly in other processes, over non blocking sockets
+// Each frame is [length][type id][bytes], the length covering the type id and the bytes. A single I/O thread
+// accepts, reads and writes, writing every frame queued for a peer with one gathering write. Received events are
+// published by a thread of their own, so a subscriber holding the bus back never stalls the sockets.
+public class EventBridge implements Closeable {
+    private static final int HEADER = Integer.BYTES + Integer.BYTES;
+    // Most frames handed to a single gathering write
+    private static final int WRITE_BATCH = 64;
+    private static final int READ_BUFFER = 64 * 1024;
+    private static final int DEFAULT_MAX_FRAME = 16 * 1024 * 1024;
+    // Received events waiting to be published before peers stop being read, reading resumes at half of it
+    private static final int MAX_BACKLOG = 4 * 1024;
+
+    private static class Binding<T> {
+        final int typeId;
+        final Class<T> classT;
+        final EventSerializer<T> serializer;
+        EventSubscription subscription;
+
+        Binding(int typeId, Class<T> classT, EventSerializer<T> serializer) {
+            this.typeId = typeId;
+            this.classT = classT;
+            this.serializer = serializer;
+        }
+    }
+
+    private static class Peer {
+        final SocketChannel channel;
+        // Frames queued by publishers, each one as its header and its bytes so they can't be interleaved
+        final Queue<ByteBuffer[]> outbox = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+        // Only used by the I/O thread
+        final Queue<ByteBuffer> unwritten = new ArrayDeque<>();
+        ByteBuffer in = ByteBuffer.allocate(READ_BUFFER);
+        SelectionKey key;
+
+        Peer(SocketChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    private final EventBus bus;
+    private final Map<Integer, Binding> byId = new ConcurrentHashMap<>();
+    private final List<Peer> peers = new CopyOnWriteArrayList<>();
+    // Handed to the I/O thread, which is the only one touching the selector keys
+    private final Queue<ServerSocketChannel> listening = new ConcurrentLinkedQueue<>();
+    private final Queue<SocketChannel> connected = new ConcurrentLinkedQueue<>();
+    private final Queue<Peer> toFlush = new ConcurrentLinkedQueue<>();
+
+    private final Selector selector;
+    private final Thread ioThread;
+    private volatile boolean closed = false;
+
+    // Largest length a frame may announce, peers sending a larger one are dropped
+    private final int maxFrame;
+    private final ExecutorService deliverer;
+    private volatile Thread deliverThread;
+    // Event received from a peer the deliver thread is publishing, only used by it
+    private Object republishing;
+    private final AtomicInteger backlog = new AtomicInteger();
+    // Local events not sent because they failed to serialize or didn't fit in a frame
+    private final LongAdder skipped = new LongAdder();
+    // Only used by the I/O thread
+    private boolean readsPaused = false;
+
+    public EventBridge(EventBus bus) throws IOException {
+        this(bus, DEFAULT_MAX_FRAME);
+    }
+
+    public EventBridge(EventBus bus, int maxFrame) throws IOException {
+        if(maxFrame < Integer.BYTES || maxFrame > Integer.MAX_VALUE - Integer.BYTES)
+            throw new IllegalArgumentException("Max frame must be between " + Integer.BYTES + " and " + (Integer.MAX_VALUE - Integer.BYTES) + "!");
+        this.bus = bus;
+        this.maxFrame = maxFrame;
+        this.deliverer = Executors.newSingleThreadExecutor(r -> {
+            final Thread thread = new Thread(r, "EventBridge-deliver");
+            thread.setDaemon(true);
+            deliverThread = thread;
+            return thread;
+        });
+        this.selector = Selector.open();
+        this.ioThread = new Thread(this::run, "EventBridge");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    // Events of classT published on the local bus go to every peer and the ones received from peers are
+    // published on it, peers must use the same type id for the type
+    public <T> void forward(Class<T> classT, int typeId, EventSerializer<T> serializer) {
+        final Binding<T> binding = new Binding<>(typeId, classT, serializer);
+        if(byId.putIfAbsent(typeId, binding) != null)
+            throw new IllegalArgumentException("Type id " + typeId + " is already forwarded!");
+        // Events received from a peer aren't sent back, the ones its handlers publish in turn are
+        binding.subscription = bus.subscribeEventInline(event -> {
+            if(Thread.currentThread() != deliverThread || event != republishing) send(binding, event);
+        }, classT, new SubscriptionOptions<T>().name("bridge-" + classT.getSimpleName()));
+    }
+
+    // Accepts peers on the loopback interface, 0 picks a free port
+    public InetSocketAddress listen(int port) throws IOException {
+        final ServerSocketChannel server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+        server.configureBlocking(false);
+        listening.add(server);
+        selector.wakeup();
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    public void connect(InetSocketAddress address) throws IOException {
+        final SocketChannel channel = SocketChannel.open(address);
+        channel.configureBlocking(false);
+        connected.add(channel);
+        selector.wakeup();
+    }
+
+    // Runs in the inline subscription, so it never throws: that would unsubscribe it and fail the local publisher
+    private <T> void send(Binding<T> binding, T event) {
+        final byte[] bytes;
+        try {
+            bytes = binding.serializer.serialize(event);
+        } catch(RuntimeException e) {
+            skipped.increment();
+            return;
+        }
+        if(Integer.BYTES + bytes.length > maxFrame) {
+            skipped.increment();
+            return;
+        }
+        for(Peer peer : peers) {
+            // Buffers have a position of their own so each peer gets its own header and view of the bytes
+            final ByteBuffer header = ByteBuffer.allocate(HEADER);
+            header.putInt(Integer.BYTES + bytes.length).putInt(binding.typeId).flip();
+            peer.outbox.add(new ByteBuffer[]{header, ByteBuffer.wrap(bytes)});
+            if(peer.flushScheduled.compareAndSet(false, true)) {
+                toFlush.add(peer);
+                selector.wakeup();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while(!closed) {
+                selector.select();
+                for(ServerSocketChannel server; (server = listening.poll()) != null; ) {
+                    try {
+                        server.register(selector, SelectionKey.OP_ACCEPT);
+                    } catch(IOException e) {
+                        closeQuietly(server);
+                    }
+                }
+                for(SocketChannel channel; (channel = connected.poll()) != null; ) addPeer(channel);
+                if(readsPaused && backlog.get() <= MAX_BACKLOG / 2) setReading(true);
+                for(Peer peer; (peer = toFlush.poll()) != null; ) {
+                    peer.flushScheduled.set(false);
+                    flush(peer);
+                }
+
+                for(SelectionKey key : selector.selectedKeys()) {
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    final Peer peer = (Peer) key.attachment();
+                    if(key.isReadable()) read(peer);
+                    if(key.isValid() && key.isWritable()) flush(peer);
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch(ClosedSelectorException e) {
+            // Closed by close()
+        } catch(IOException e) {
+            // The selector itself failed, without peers nothing is queued for them anymore
+            for(Peer peer : peers) drop(peer);
+        }
+    }
+
+    // A failing connection is only lost itself, the I/O thread carries on with the rest
+    private void accept(ServerSocketChannel server) {
+        SocketChannel channel = null;
+        try {
+            channel = server.accept();
+            if(channel == null) return;
+            channel.configureBlocking(false);
+            addPeer(channel);
+        } catch(IOException e) {
+            if(channel != null) closeQuietly(channel);
+        }
+    }
+
+    private void addPeer(SocketChannel channel) {
+        final Peer peer = new Peer(channel);
+        try {
+            peer.key = channel.register(selector, readOps(), peer);
+        } catch(IOException e) {
+            closeQuietly(channel);
+            return;
+        }
+        peers.add(peer);
+    }
+
+    private void flush(Peer peer) {
+        // Dropped after being scheduled
+        if(!peer.key.isValid()) return;
+        try {
+            while(true) {
+                // Top the batch up with queued frames, keeping whatever the last write left behind first
+                for(ByteBuffer[] frame; peer.unwritten.size() < 2 * WRITE_BATCH && (frame = peer.outbox.poll()) != null; )
+                    Collections.addAll(peer.unwritten, frame);
+                if(peer.unwritten.isEmpty()) break;
+
+                final ByteBuffer[] buffers = peer.unwritten.toArray(new ByteBuffer[0]);
+                peer.channel.write(buffers);
+                while(!peer.unwritten.isEmpty() && !peer.unwritten.peek().hasRemaining()) peer.unwritten.poll();
+                // The socket is full, carry on once it is writable
+                if(!peer.unwritten.isEmpty()) {
+                    peer.key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+            peer.key.interestOps(readOps());
+        } catch(IOException e) {
+            drop(peer);
+        }
+    }
+
+    private void read(Peer peer) {
+        try {
+            if(peer.channel.read(peer.in) < 0) {
+                drop(peer);
+                return;
+            }
+            peer.in.flip();
+            while(peer.in.remaining() >= Integer.BYTES) {
+                final int length = peer.in.getInt(peer.in.position());
+                if(length < Integer.BYTES || length > maxFrame) {
+                    // Not speaking this framing, or asking for more memory than a frame may take
+                    drop(peer);
+                    return;
+                }
+                if(peer.in.remaining() < Integer.BYTES + length) {
+                    // A frame larger than the buffer needs a larger one
+                    if(Integer.BYTES + length > peer.in.capacity()) {
+                        final ByteBuffer larger = ByteBuffer.allocate(Integer.BYTES + length);
+                        larger.put(peer.in);
+                        peer.in = larger;
+                        return;
+                    }
+                    break;
+                }
+                peer.in.getInt();
+                final int typeId = peer.in.getInt();
+                final byte[] bytes = new byte[length - Integer.BYTES];
+                peer.in.get(bytes);
+                receive(typeId, bytes);
+            }
+            peer.in.compact();
+        } catch(IOException e) {
+            drop(peer);
+        }
+    }
+
+    private void receive(int typeId, byte[] bytes) {
+        final Binding<?> binding = byId.get(typeId);
+        // Types this side doesn't forward are ignored
+        if(binding == null) return;
+        // Peers are left unread while the deliverer is behind, so their sockets fill up and they slow down
+        if(backlog.incrementAndGet() >= MAX_BACKLOG && !readsPaused) setReading(false);
+        deliverer.execute(() -> {
+            try {
+                republishing = binding.serializer.deserialize(bytes);
+                bus.publishEvent(republishing);
+            } catch(RuntimeException e) {
+                // The local bus is shutting down, a local handler failed or the bytes couldn't be read,
+                // only this event is lost
+            } finally {
+                republishing = null;
+                if(backlog.decrementAndGet() == MAX_BACKLOG / 2) selector.wakeup();
+            }
+        });
+    }
+
+    // Called by the I/O thread only
+    private void setReading(boolean reading) {
+        readsPaused = !reading;
+        for(Peer peer : peers) {
+            if(!peer.key.isValid()) continue;
+            final int ops = peer.key.interestOps();
+            peer.key.interestOps(reading ? ops | SelectionKey.OP_READ : ops & ~SelectionKey.OP_READ);
+        }
+    }
+
+    private int readOps() {
+        return readsPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    private void drop(Peer peer) {
+        peers.remove(peer);
+        peer.key.cancel();
+        closeQuietly(peer.channel);
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            channel.close();
+        } catch(IOException e) {
+            // Already gone
+        }
+    }
+
+    public int peers() {
+        return peers.size();
+    }
+
+    public long skipped() {
+        return skipped.sum();
+    }
+
+    // Stops forwarding and closes every connection
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        for(Binding binding : byId.values()) binding.subscription.unsubscribe();
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for(SelectionKey key : selector.keys()) key.channel().close();
+        selector.close();
+        // Events already received are still published
+        deliverer.shutdown();
+    }
+}
@@ -1,75 +1,1296 @@
-import util.NodeLinkedList;
+import util.Accumulator;
+import util.BoundedRingBuffer;
+import util.ConflatingMailbox;
+import util.InFlightCounter;
+import util.LanedMailbox;
+import util.LatencyHistogram;
+import util.Mailbox;
+import util.MappedEventLog;
+import util.MulticastRing;
+import util.Timeouts;
+import util.TopicTrie;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 
 public class EventBus {
+    // Priorities events can be published with, handlers take the higher ones first
+    public static final int NORMAL_PRIORITY = 0;
+    public static final int MAX_PRIORITY = 3;
+
+    // Only taken to change subscriptions and to shut down, publishing only takes it while shutting down
     private final Lock monitor = new ReentrantLock();
     private final int maxPending;
-    private final Map<Class, NodeLinkedList<Handler>> map = new HashMap<>();
+    // Handler arrays are never mutated, subscribing and unsubscribing swaps in a new copy
+    private final ConcurrentMap<Class, Handler[]> map = new ConcurrentHashMap<>();
+    // Handlers resolved over the whole type hierarchy of each published class
+    // Replaced by a new, empty cache whenever the subscriptions change
+    private volatile ClassValue<Route> dispatch = newDispatch();
+    // Types whose subscribers with a thread of their own share a single ring instead of a mailbox each
+    private final ConcurrentMap<Class, MulticastRing> rings = new ConcurrentHashMap<>();
+    // Types whose events are also appended to a log that subscribers can replay
+    private final ConcurrentMap<Class, LogBinding> logs = new ConcurrentHashMap<>();
+    // Consumer groups by name, each one registered as a single handler
+    private final Map<String, GroupHandler> groups = new HashMap<>();
+    // Topic subscriptions, only used under the monitor
+    private final TopicTrie<Handler> topics = new TopicTrie<>();
+    private final Map<Handler, String> topicPatterns = new HashMap<>();
+    // Handlers matched by each topic published, replaced by a new, empty cache whenever topic subscriptions change
+    private volatile ConcurrentMap<String, Handler[]> topicCache = new ConcurrentHashMap<>();
+    private static final int TOPIC_CACHE_LIMIT = 4096;
+
+    // Most messages an executor backed handler runs before giving the pool to others
+    private static final int RUN_BUDGET = 64;
+
+    private final AtomicInteger handlerIds = new AtomicInteger();
+    // Counters of every live subscription and of every class ever published, read by metrics()
+    private final Set<Stats> stats = ConcurrentHashMap.newKeySet();
+    private final ConcurrentMap<Class, LongAdder> publishCounts = new ConcurrentHashMap<>();
+
+    // Closes the windows of every aggregation subscription, created with the first one
+    private ScheduledExecutorService windowTimer;
 
     // State to allow shutting down
-    private boolean shuttingDown = false;
+    private volatile boolean shuttingDown = false;
+    // Publishers past the shutting down check, handlers are only told to drain once none is left
+    private final InFlightCounter publishing = new InFlightCounter();
+    private final Condition publishersGone = monitor.newCondition();
+    private volatile boolean draining = false;
     private int runningHandlers = 0;
-    private boolean done = false;
     private final Condition isDone = monitor.newCondition();
 
     public EventBus(int maxPending) {
         this.maxPending = maxPending;
     }
 
+    // Everything a published class is delivered to
+    private static class Route {
+        // Handlers without a field filter
+        final Handler[] handlers;
+        final FieldIndex[] indexes;
+        final MulticastRing[] rings;
+        // Only for the exact class it was enabled for
+        final LogBinding log;
+        final LongAdder published;
+
+        Route(Handler[] handlers, FieldIndex[] indexes, MulticastRing[] rings, LogBinding log, LongAdder published) {
+            this.handlers = handlers;
+            this.indexes = indexes;
+            this.rings = rings;
+            this.log = log;
+            this.published = published;
+        }
+
+        // Handlers the message may go to, only allocates when some handler filters by field
+        Handler[] targets(Object message) {
+            if(indexes.length == 0) return handlers;
+            final List<Handler> targets = new ArrayList<>(Arrays.asList(handlers));
+            for(FieldIndex index : indexes) Collections.addAll(targets, index.lookup(message));
+            return targets.toArray(new Handler[0]);
+        }
+    }
+
+    // Log of a type, appending and reading the route to deliver with happen under its lock, so a subscriber
+    // registered under it too knows the first sequence it gets live
+    private static class LogBinding<T> {
+        final MappedEventLog log;
+        final EventSerializer<T> serializer;
+        final Lock lock = new ReentrantLock();
+        // Records of publishers waiting for the lock, whoever gets it appends them all
+        final Queue<PendingAppend> pending = new ConcurrentLinkedQueue<>();
+
+        LogBinding(MappedEventLog log, EventSerializer<T> serializer) {
+            this.log = log;
+            this.serializer = serializer;
+        }
+    }
+
+    // Records of a single publish call, the route or the failure are set by whoever appended them
+    private static class PendingAppend {
+        final List<byte[]> records;
+        // Guarded by the lock of the log
+        Route route;
+        RuntimeException failure;
+
+        PendingAppend(List<byte[]> records) {
+            this.records = records;
+        }
+    }
+
+    // What came of handing events to several handlers, one failing or rejecting them doesn't keep the rest from them
+    private static class Delivery {
+        String rejectedBy;
+        RuntimeException failure;
+
+        // Returns true if the handler took the event and has to be woken
+        boolean offer(Handler handler, Object message, long now, int priority) {
+            try {
+                if(handler.deliver(message, now, priority)) return true;
+                if(rejectedBy == null && handler.overflow == OverflowPolicy.FAIL) rejectedBy = handler.stats.name;
+            } catch(RuntimeException e) {
+                // Thrown by an inline handler
+                failed(e);
+            }
+            return false;
+        }
+
+        // Signalling can fail too, as when an executor rejects the handler
+        void wake(Handler handler) {
+            try {
+                handler.signal();
+            } catch(RuntimeException e) {
+                failed(e);
+            }
+        }
+
+        void failed(RuntimeException e) {
+            if(failure == null) failure = e;
+        }
+
+        // The first failure wins over a rejection
+        void complete() {
+            if(failure != null) throw failure;
+            if(rejectedBy != null) throw new RejectedExecutionException("Handler " + rejectedBy + " has too many pending events!");
+        }
+    }
+
+    // Handlers filtering by the same field function, by the value each one wants
+    private static class FieldIndex {
+        private static final Handler[] NONE = new Handler[0];
+
+        final Function field;
+        final Map<Object, Handler[]> byValue;
+
+        FieldIndex(Function field, Map<Object, Handler[]> byValue) {
+            this.field = field;
+            this.byValue = byValue;
+        }
+
+        @SuppressWarnings("unchecked")
+        Handler[] lookup(Object message) {
+            final Handler[] handlers = byValue.get(field.apply(message));
+            return handlers != null ? handlers : NONE;
+        }
+    }
+
+    // Counters of one subscription, updated without locks and read by metrics()
+    private static class Stats {
+        final String name;
+        final Class<?> eventType;
+        final IntSupplier pending;
+        final LongAdder handled = new LongAdder();
+        final LongAdder dropped = new LongAdder();
+        final AtomicInteger peakPending = new AtomicInteger();
+        final LatencyHistogram latency = new LatencyHistogram();
+
+        Stats(String name, Class<?> eventType, IntSupplier pending) {
+            this.name = name;
+            this.eventType = eventType;
+            this.pending = pending;
+        }
+
+        void observePending(int depth) {
+            int peak;
+            while(depth > (peak = peakPending.get()) && !peakPending.compareAndSet(peak, depth)) ;
+        }
+
+        void handled(long queuedAt, long now) {
+            handled.increment();
+            latency.record(now - queuedAt);
+        }
+
+        EventBusMetrics.HandlerMetrics snapshot() {
+            return new EventBusMetrics.HandlerMetrics(name, eventType, pending.getAsInt(), peakPending.get(),
+                    handled.sum(), dropped.sum(), latency.snapshot());
+        }
+    }
+
     private static class Handler<T> {
-        final Condition condition;
-        final NodeLinkedList<T> messages = new NodeLinkedList<>();
+        final Thread thread;
+        final OverflowPolicy overflow;
+        // One lane per priority, each sized to maxPending so occupancy checks are O(1)
+        // Lanes are ring buffers unless the subscription conflates
+        final LanedMailbox<T> messages;
+        final Stats stats;
+        // Publisher side filters, set before the handler is registered
+        Predicate<? super T> filter;
+        Function<? super T, ?> field;
+        Object fieldValue;
+        // When each message taken by the handler was queued, one per message of the batch being handled
+        long[] stamps = new long[1];
+        volatile boolean waiting = false;
+        volatile boolean closed = false;
+
+        // Publishers waiting for room when the overflow policy is BLOCK
+        final Lock roomLock = new ReentrantLock();
+        final Condition hasRoom = roomLock.newCondition();
+        final AtomicInteger blockedPublishers = new AtomicInteger();
+
+        Handler(String name, Class<?> eventType, Thread thread, OverflowPolicy overflow, Supplier<Mailbox<T>> newLane) {
+            this.thread = thread;
+            this.overflow = overflow;
+            this.messages = new LanedMailbox<>(MAX_PRIORITY + 1, newLane);
+            this.stats = new Stats(name, eventType, this::pending);
+        }
+
+        // Handler reporting to the counters of another one
+        Handler(Stats stats, Thread thread, OverflowPolicy overflow, Supplier<Mailbox<T>> newLane) {
+            this.thread = thread;
+            this.overflow = overflow;
+            this.messages = new LanedMailbox<>(MAX_PRIORITY + 1, newLane);
+            this.stats = stats;
+        }
+
+        int pending() {
+            return messages.size();
+        }
+
+        Handler<T> filtered(SubscriptionOptions<T> options) {
+            this.filter = options.filter;
+            this.field = options.field;
+            this.fieldValue = options.fieldValue;
+            return this;
+        }
+
+        // Field filters are checked by the route index, except where there is none
+        boolean accepts(T message) {
+            return filter == null || filter.test(message);
+        }
+
+        boolean acceptsField(T message) {
+            return field == null || Objects.equals(field.apply(message), fieldValue);
+        }
+
+        // Returns false when the message had to be discarded
+        boolean deliver(T message, long stamp, int priority) {
+            if(!messages.offer(message, stamp, priority) && !applyOverflow(message, stamp, priority)) {
+                stats.dropped.increment();
+                return false;
+            }
+            stats.observePending(messages.size());
+            return true;
+        }
+
+        // Queues as many of the first count messages as fit without applying the overflow policy
+        int deliverAll(T[] batch, int count, long stamp) {
+            final int accepted = messages.offerAll(batch, count, stamp);
+            if(accepted > 0) stats.observePending(messages.size());
+            return accepted;
+        }
+
+        // Returns true if the message was queued after all
+        private boolean applyOverflow(T message, long stamp, int priority) {
+            switch(overflow.kind) {
+                case DROP_OLDEST:
+                    // Only makes room in its own lane, an urgent message never pushes out another
+                    do {
+                        if(messages.pollLane(priority) != null) stats.dropped.increment();
+                    } while(!messages.offer(message, stamp, priority));
+                    return true;
+                case BLOCK:
+                    return awaitRoom(message, stamp, priority);
+                default:
+                    return false;
+            }
+        }
+
+        private boolean awaitRoom(T message, long stamp, int priority) {
+            if(Timeouts.noWait(overflow.timeout)) return false;
+
+            // The handler may be parked with a full mailbox if its signal is still held back by a batch
+            signal();
+            blockedPublishers.incrementAndGet();
+            try {
+                roomLock.lock();
+                long limit = Timeouts.start(overflow.timeout);
+                long remaining = Timeouts.remaining(limit);
+                while(true) {
+                    if(messages.offer(message, stamp, priority)) return true;
+                    if(closed || Timeouts.isTimeout(remaining)) return false;
+                    try {
+                        hasRoom.await(remaining, TimeUnit.MILLISECONDS);
+                    } catch(InterruptedException e) {
+                        // Publishing can't throw it so just give up on the message and keep the interrupt
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    remaining = Timeouts.remaining(limit);
+                }
+            } finally {
+                roomLock.unlock();
+                blockedPublishers.decrementAndGet();
+            }
+        }
+
+        T poll() {
+            return poll(stamps);
+        }
+
+        // Several threads may take from the same handler as long as each one has stamps of its own
+        T poll(long[] stampsOut) {
+            final T message = messages.poll(stampsOut, 0);
+            if(message != null && blockedPublishers.get() > 0) notifyRoom();
+            return message;
+        }
+
+        // Moves up to max more messages into the batch, keeping their stamps next to the ones already there
+        int drainTo(List<T> batch, int max) {
+            int drained = 0;
+            for(T message; drained < max && (message = messages.poll(stamps, batch.size())) != null; drained++) batch.add(message);
+            if(drained > 0 && blockedPublishers.get() > 0) notifyRoom();
+            return drained;
+        }
+
+        void close() {
+            closed = true;
+            if(blockedPublishers.get() > 0) notifyRoom();
+        }
+
+        private void notifyRoom() {
+            try {
+                roomLock.lock();
+                hasRoom.signalAll();
+            } finally {
+                roomLock.unlock();
+            }
+        }
+
+        // Called by publishers after queueing messages
+        void signal() {
+            if(waiting) LockSupport.unpark(thread);
+        }
+
+        // Called on shut down so the handler can drain and exit
+        void wakeUp() {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    // Handler without a thread of its own, it is scheduled on the executor only while it has messages
+    private class ExecutorHandler<T> extends Handler<T> implements Runnable, EventSubscription {
+        final Consumer<T> handle;
+        final Class<T> classT;
+        final Executor executor;
+        // Set while a run is submitted or executing so the handler never runs concurrently with itself
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean exited = new AtomicBoolean();
+        volatile boolean cancelled = false;
+
+        ExecutorHandler(String name, Consumer<T> handle, Class<T> classT, Executor executor, SubscriptionOptions<T> options) {
+            super(name, classT, null, options.overflow, () -> newMailbox(options));
+            this.handle = handle;
+            this.classT = classT;
+            this.executor = executor;
+            filtered(options);
+        }
+
+        @Override
+        void signal() {
+            if(scheduled.compareAndSet(false, true)) submit();
+        }
+
+        @Override
+        void wakeUp() {
+            try {
+                signal();
+            } catch(RejectedExecutionException e) {
+                // The executor was shut down so no run will ever account for the exit
+                exit();
+            }
+        }
+
+        // Unregisters the handler and accounts for its exit, only once
+        private void exit() {
+            if(exited.compareAndSet(false, true)) removeHandler(this, classT);
+        }
+
+        private void submit() {
+            try {
+                executor.execute(this);
+            } catch(RejectedExecutionException e) {
+                scheduled.set(false);
+                throw e;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                T msg;
+                for(int i = 0; i < RUN_BUDGET && !cancelled && (msg = poll()) != null; i++) {
+                    handle.accept(msg);
+                    stats.handled(stamps[0], System.nanoTime());
+                }
+            } catch(RuntimeException | Error e) {
+                // Like a handler on its own thread, a throwing handler ends its subscription
+                exit();
+                throw e;
+            }
+
+            if(cancelled || (draining && messages.isEmpty())) {
+                exit();
+                return;
+            }
+            scheduled.set(false);
+            // Publishers that found the run still scheduled didn't submit another one
+            if((cancelled || draining || !messages.isEmpty()) && scheduled.compareAndSet(false, true)) {
+                try {
+                    submit();
+                } catch(RejectedExecutionException e) {
+                    exit();
+                }
+            }
+        }
+
+        @Override
+        public void unsubscribe() {
+            if(cancelled) return;
+            cancelled = true;
+            // Stop new messages right away and let the next run account for the exit
+            unregisterHandler(this, classT);
+            wakeUp();
+        }
+
+        @Override
+        public boolean isActive() {
+            return !closed;
+        }
+    }
 
-        Handler(Condition condition) {
-            this.condition = condition;
+    // Handler run by the publisher thread itself inside publishEvent, for handlers cheaper than a hand-off
+    private class InlineHandler<T> extends Handler<T> implements EventSubscription {
+        final Consumer<T> handle;
+        final Class<T> classT;
+        // Publishers running the handler right now, shut down waits for them
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicBoolean exited = new AtomicBoolean();
+
+        InlineHandler(String name, Consumer<T> handle, Class<T> classT) {
+            // Nothing is ever queued
+            super(name, classT, null, OverflowPolicy.DROP_NEWEST, () -> new BoundedRingBuffer<>(1));
+            this.handle = handle;
+            this.classT = classT;
+        }
+
+        @Override
+        boolean deliver(T message, long stamp, int priority) {
+            inFlight.incrementAndGet();
+            try {
+                // Unsubscribed after the publisher resolved its handlers
+                if(closed) return true;
+                handle.accept(message);
+                stats.handled(stamp, System.nanoTime());
+                return true;
+            } catch(RuntimeException | Error e) {
+                // Like a queued handler, a throwing handler ends its subscription
+                unregisterHandler(this, classT);
+                throw e;
+            } finally {
+                inFlight.decrementAndGet();
+                exitIfDone();
+            }
+        }
+
+        @Override
+        int deliverAll(T[] batch, int count, long stamp) {
+            for(int i = 0; i < count; i++) deliver(batch[i], stamp, NORMAL_PRIORITY);
+            return count;
+        }
+
+        @Override
+        void signal() {
+        }
+
+        @Override
+        void wakeUp() {
+            unsubscribe();
+        }
+
+        // Accounts for the exit once closed and no publisher is running the handler anymore
+        private void exitIfDone() {
+            if(closed && inFlight.get() == 0 && exited.compareAndSet(false, true)) handlerExited();
+        }
+
+        @Override
+        public void unsubscribe() {
+            unregisterHandler(this, classT);
+            exitIfDone();
+        }
+
+        @Override
+        public boolean isActive() {
+            return !closed;
+        }
+    }
+
+    // Consumer group, its members share the events of the type and each one is taken by a single member
+    // Without an ordering key members take from the mailbox of the group, otherwise each member has a
+    // mailbox of its own and the hash of the key picks it
+    private class GroupHandler<T> extends Handler<T> {
+        final String group;
+        final Class<T> classT;
+        final SubscriptionOptions<T> options;
+        // Only changed under the monitor
+        volatile Handler<T>[] members = newMembers(0);
+
+        GroupHandler(Class<T> classT, SubscriptionOptions<T> options) {
+            super(options.group, classT, null, options.overflow, () -> newMailbox(options));
+            this.group = options.group;
+            this.classT = classT;
+            this.options = options;
+            filtered(options);
+        }
+
+        // Where the member takes its events from
+        Handler<T> source(Handler<T> member) {
+            return options.orderingKey != null ? member : this;
+        }
+
+        @Override
+        boolean deliver(T message, long stamp, int priority) {
+            if(options.orderingKey == null) return super.deliver(message, stamp, priority);
+
+            final Handler<T>[] observed = members;
+            // Every member left after the publisher resolved its handlers
+            if(observed.length == 0) {
+                stats.dropped.increment();
+                return true;
+            }
+            final Handler<T> member = observed[Math.floorMod(options.orderingKey.apply(message).hashCode(), observed.length)];
+            if(!member.deliver(message, stamp, priority)) return false;
+            member.signal();
+            // The member left meanwhile and may have already handed back its events
+            if(member.closed) handBack(member);
+            return true;
+        }
+
+        // Delivers the events left in the mailbox of a member that left to the members still in the group
+        void handBack(Handler<T> member) {
+            final long[] stamp = new long[1];
+            for(int lane = member.messages.lanes() - 1; lane >= 0; lane--)
+                for(T message; (message = member.messages.pollLane(lane, stamp, 0)) != null; ) deliver(message, stamp[0], lane);
+        }
+
+        @Override
+        int deliverAll(T[] batch, int count, long stamp) {
+            // Ordered groups deliver one by one to the member of each key
+            return options.orderingKey == null ? super.deliverAll(batch, count, stamp) : 0;
+        }
+
+        @Override
+        int pending() {
+            if(options.orderingKey == null) return super.pending();
+            int pending = 0;
+            for(Handler<T> member : members) pending += member.pending();
+            return pending;
+        }
+
+        // Wakes a single idle member, the one taking a message wakes another one if more are left
+        @Override
+        void signal() {
+            if(options.orderingKey != null) return;
+            for(Handler<T> member : members) {
+                if(member.waiting) {
+                    LockSupport.unpark(member.thread);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        void wakeUp() {
+            for(Handler<T> member : members) member.wakeUp();
+        }
+
+        @SuppressWarnings("unchecked")
+        private Handler<T>[] newMembers(int size) {
+            return new Handler[size];
+        }
+    }
+
+    // Subscriber thread taking events of a group, it reports to the counters of the group
+    private class GroupMember<T> extends Handler<T> {
+        final GroupHandler<T> group;
+
+        GroupMember(GroupHandler<T> group) {
+            // Members only use their mailbox when the group is ordered
+            super(group.stats, Thread.currentThread(), group.options.overflow,
+                    group.options.orderingKey != null ? () -> newMailbox(group.options) : () -> new BoundedRingBuffer<>(1));
+            this.group = group;
+        }
+    }
+
+    // Reactive subscriber, events are handed to onNext only while it has demand, by whichever thread publishes
+    // or requests, one at a time. Without demand they wait in the mailbox under the overflow policy.
+    private class FlowHandler<T> extends Handler<T> implements Flow.Subscription {
+        final Flow.Subscriber<? super T> subscriber;
+        final Class<T> classT;
+        final AtomicLong demand = new AtomicLong();
+        // Calls to drain, only the one finding it at 0 runs it and loops until no other call is missed
+        // Starts held until the subscriber got its subscription
+        final AtomicInteger drains = new AtomicInteger(1);
+        volatile boolean cancelled = false;
+        volatile Throwable error;
+
+        FlowHandler(String name, Flow.Subscriber<? super T> subscriber, Class<T> classT, SubscriptionOptions<T> options) {
+            super(name, classT, null, options.overflow, () -> newMailbox(options));
+            this.subscriber = subscriber;
+            this.classT = classT;
+            filtered(options);
+        }
+
+        void start() {
+            drains.set(0);
+            drain();
+        }
+
+        @Override
+        void signal() {
+            drain();
+        }
+
+        @Override
+        void wakeUp() {
+            drain();
+        }
+
+        private void drain() {
+            if(drains.getAndIncrement() != 0) return;
+            int missed = 1;
+            do {
+                final long requested = demand.get();
+                long emitted = 0;
+                T msg;
+                try {
+                    while(emitted < requested && !cancelled && (msg = poll()) != null) {
+                        subscriber.onNext(msg);
+                        stats.handled(stamps[0], System.nanoTime());
+                        emitted++;
+                    }
+                } catch(RuntimeException | Error e) {
+                    // Like any other handler, a throwing subscriber ends its subscription
+                    removeHandler(this, classT);
+                    throw e;
+                }
+                if(emitted > 0 && requested != Long.MAX_VALUE) demand.addAndGet(-emitted);
+
+                // Terminal states leave drains above 0 so nothing runs afterwards
+                if(error != null) {
+                    removeHandler(this, classT);
+                    subscriber.onError(error);
+                    return;
+                }
+                if(cancelled) {
+                    removeHandler(this, classT);
+                    return;
+                }
+                if(draining && messages.isEmpty()) {
+                    removeHandler(this, classT);
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = drains.addAndGet(-missed);
+            } while(missed != 0);
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                error = new IllegalArgumentException("Demand must be positive!");
+                unregisterHandler(this, classT);
+            } else {
+                // Saturates at Long.MAX_VALUE, which stands for unbounded demand
+                long current;
+                while((current = demand.get()) != Long.MAX_VALUE
+                        && !demand.compareAndSet(current, current + n < 0 ? Long.MAX_VALUE : current + n)) ;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            if(cancelled) return;
+            cancelled = true;
+            // Stop new messages right away and let the drain account for the exit
+            unregisterHandler(this, classT);
+            drain();
+        }
+    }
+
+    // Events folded into a window during slide milliseconds
+    private static class Pane {
+        final long start;
+        final long end;
+        final ConcurrentMap<Object, Accumulator> groups = new ConcurrentHashMap<>();
+        // Publishers folding into the pane, it is only read once sealed and without writers
+        final AtomicInteger writers = new AtomicInteger();
+        volatile boolean sealed = false;
+
+        Pane(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // Folds events into the current pane on the publisher thread, a timer closes a pane every slide and
+    // hands the summary of the last size / slide panes to the handler, so it runs once per window
+    private class WindowHandler<T> extends Handler<T> implements EventSubscription {
+        // Stands for the null key, which concurrent maps can't hold
+        private final Object noGroup = new Object();
+
+        final Consumer<WindowSummary> handle;
+        final Class<T> classT;
+        final WindowOptions<T> options;
+        final AtomicReference<Pane> current;
+        // Only used by the timer thread
+        final ArrayDeque<Pane> recent = new ArrayDeque<>();
+        final AtomicBoolean finished = new AtomicBoolean();
+        ScheduledFuture<?> ticks;
+
+        WindowHandler(String name, Consumer<WindowSummary> handle, Class<T> classT, WindowOptions<T> options) {
+            // Nothing is ever queued
+            super(name, classT, null, OverflowPolicy.DROP_NEWEST, () -> new BoundedRingBuffer<>(1));
+            this.handle = handle;
+            this.classT = classT;
+            this.options = options;
+            final long now = System.currentTimeMillis();
+            this.current = new AtomicReference<>(new Pane(now, now + options.slide));
+        }
+
+        @Override
+        boolean deliver(T message, long stamp, int priority) {
+            if(closed) return true;
+            final Object key = options.groupBy != null ? options.groupBy.apply(message) : null;
+            final double value = options.value.applyAsDouble(message);
+            while(true) {
+                final Pane pane = current.get();
+                pane.writers.incrementAndGet();
+                try {
+                    // The timer is closing it, the next one is already current
+                    if(pane.sealed) continue;
+                    final Object group = key != null ? key : noGroup;
+                    Accumulator accumulator = pane.groups.get(group);
+                    if(accumulator == null) accumulator = pane.groups.computeIfAbsent(group, k -> new Accumulator());
+                    accumulator.add(value);
+                    stats.handled(stamp, System.nanoTime());
+                    return true;
+                } finally {
+                    pane.writers.decrementAndGet();
+                }
+            }
+        }
+
+        @Override
+        int deliverAll(T[] batch, int count, long stamp) {
+            for(int i = 0; i < count; i++) deliver(batch[i], stamp, NORMAL_PRIORITY);
+            return count;
+        }
+
+        @Override
+        void signal() {
         }
 
+        @Override
+        void wakeUp() {
+            unsubscribe();
+        }
+
+        // Runs on the timer thread every slide
+        void tick() {
+            final Pane closing = seal();
+            recent.addLast(closing);
+            if(recent.size() > options.size / options.slide) recent.removeFirst();
+            report(recent, recent.peekFirst().start, closing.end);
+        }
+
+        // Makes the next pane current and returns the one it replaced once no publisher folds into it anymore
+        private Pane seal() {
+            final Pane closing = current.get();
+            current.set(new Pane(closing.end, closing.end + options.slide));
+            closing.sealed = true;
+            // Publishers check sealed after announcing themselves so once they are gone no one else comes
+            while(closing.writers.get() > 0) Thread.yield();
+            return closing;
+        }
+
+        private void report(Iterable<Pane> panes, long start, long end) {
+            final Map<Object, WindowSummary.Aggregate> groups = new HashMap<>();
+            for(Pane pane : panes) {
+                for(Map.Entry<Object, Accumulator> group : pane.groups.entrySet()) {
+                    final Accumulator accumulator = group.getValue();
+                    final WindowSummary.Aggregate aggregate = new WindowSummary.Aggregate(accumulator.count(),
+                            accumulator.sum(), accumulator.min(), accumulator.max());
+                    groups.merge(group.getKey() == noGroup ? null : group.getKey(), aggregate, WindowSummary.Aggregate::merge);
+                }
+            }
+            // Windows without events aren't reported
+            if(groups.isEmpty()) return;
+            try {
+                handle.accept(new WindowSummary(start, end, groups));
+            } catch(RuntimeException | Error e) {
+                // Like any other handler, a throwing handler ends its subscription
+                unsubscribe();
+                throw e;
+            }
+        }
+
+        // Reports what came since the last tick as a window ending now and accounts for the exit
+        // The panes before were already reported, a sliding window would report them again
+        void finish() {
+            if(!finished.compareAndSet(false, true)) return;
+            ticks.cancel(false);
+            try {
+                final Pane open = seal();
+                final long now = System.currentTimeMillis();
+                report(Collections.singletonList(open), open.start, Math.max(open.start, Math.min(now, open.end)));
+            } finally {
+                handlerExited();
+            }
+        }
+
+        @Override
+        public void unsubscribe() {
+            if(closed) return;
+            unregisterHandler(this, classT);
+            try {
+                // After any tick already running, the timer has a single thread
+                windowTimer.execute(this::finish);
+            } catch(RejectedExecutionException e) {
+                // A racing unsubscribe already finished it and the bus shut down
+            }
+        }
+
+        @Override
+        public boolean isActive() {
+            return !closed;
+        }
     }
 
     public <T> void subscribeEvent(Consumer<T> handle, Class<T> classT) throws InterruptedException {
+        subscribeEvent(handle, classT, new SubscriptionOptions<>());
+    }
+
+    public <T> void subscribeEvent(Consumer<T> handle, Class<T> classT, SubscriptionOptions<T> options) throws InterruptedException {
+        if(options.group != null) {
+            consumeAsMember(handle, classT, options);
+            return;
+        }
+        if(options.replayOffset >= 0 || options.replayTimestamp >= 0) {
+            replayAndSubscribe(handle, classT, options);
+            return;
+        }
+
+        final MulticastRing<T> ring = rings.get(classT);
+        if(ring != null && canShareRing(options)) {
+            readRing(ring, handle, handlerName(classT, options), classT);
+            return;
+        }
+
         // Register handler
-        final Handler<T> handler = new Handler<>(monitor.newCondition());
-        NodeLinkedList.Node<Handler> node = registerHandler(handler, classT);
+        final Handler<T> handler = newHandler(classT, options);
+        registerHandler(handler, classT);
 
-        // Await and execute
-        Optional<T> msg;
-        while(true) {
-            msg = getOrWait(handler);
-            if(msg.isPresent()) {
-                handle.accept(msg.get());
-            } else { // If no more messages just exit
-                if(runningHandlers == 0) finish();  // If last handler exiting just notify anyone waiting for shut down
-                break;
+        try {
+            handleUntilShutdown(handler, handle);
+        } finally {
+            removeHandler(handler, classT);
+        }
+    }
+
+    public <T> EventSubscription subscribeEvent(Consumer<T> handle, Class<T> classT, Executor executor) {
+        return subscribeEvent(handle, classT, executor, new SubscriptionOptions<>());
+    }
+
+    // Doesn't block, the handler runs serially and in order on the executor whenever it has pending messages
+    public <T> EventSubscription subscribeEvent(Consumer<T> handle, Class<T> classT, Executor executor, SubscriptionOptions<T> options) {
+        if(options.group != null) throw new IllegalArgumentException("Only subscribers with a thread of their own can join a group!");
+        final ExecutorHandler<T> handler = new ExecutorHandler<>(handlerName(classT, options), handle, classT, executor, options);
+        registerHandler(handler, classT);
+        return handler;
+    }
+
+    public <T> void subscribeTopic(Consumer<T> handle, String pattern, Class<T> classT) throws InterruptedException {
+        subscribeTopic(handle, pattern, classT, new SubscriptionOptions<>());
+    }
+
+    // Receives the events of classT published to a topic matching the pattern, like orders.*.created or orders.#
+    public <T> void subscribeTopic(Consumer<T> handle, String pattern, Class<T> classT, SubscriptionOptions<T> options) throws InterruptedException {
+        if(options.group != null) throw new IllegalArgumentException("Only subscribers by type can join a group!");
+
+        // Register handler
+        final Handler<T> handler = newHandler(classT, options);
+        registerTopicHandler(handler, pattern);
+
+        try {
+            handleUntilShutdown(handler, handle);
+        } finally {
+            removeTopicHandler(handler);
+        }
+    }
+
+    public <T> EventSubscription subscribeEventInline(Consumer<T> handle, Class<T> classT) {
+        return subscribeEventInline(handle, classT, new SubscriptionOptions<>());
+    }
+
+    // Doesn't block, publishers run the handler themselves so it must be cheap and safe to run concurrently
+    // Only the name and the filters of the options apply, nothing is ever queued
+    public <T> EventSubscription subscribeEventInline(Consumer<T> handle, Class<T> classT, SubscriptionOptions<T> options) {
+        if(options.group != null) throw new IllegalArgumentException("Inline subscribers can't join a group!");
+        final InlineHandler<T> handler = new InlineHandler<>(handlerName(classT, options), handle, classT);
+        handler.filtered(options);
+        registerHandler(handler, classT);
+        return handler;
+    }
+
+    // Doesn't block, publishers fold events into the window and handle runs on a timer thread once per window
+    public <T> EventSubscription subscribeWindow(Consumer<WindowSummary> handle, Class<T> classT, WindowOptions<T> options) {
+        final String name = options.name != null ? options.name : classT.getSimpleName() + "-" + handlerIds.incrementAndGet();
+        final WindowHandler<T> handler = new WindowHandler<>(name, handle, classT, options);
+        try {
+            monitor.lock();
+            if(windowTimer == null) {
+                windowTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    final Thread thread = new Thread(r, "EventBus-windows");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            handler.ticks = windowTimer.scheduleAtFixedRate(handler::tick, options.slide, options.slide, TimeUnit.MILLISECONDS);
+            registerHandler(handler, classT);
+        } finally {
+            monitor.unlock();
+        }
+        return handler;
+    }
+
+    // Publishers wait for demand as long as it takes, so slow subscribers hold them back instead of losing events
+    public <T> Flow.Publisher<T> publisher(Class<T> classT) {
+        return publisher(classT, new SubscriptionOptions<T>().overflow(OverflowPolicy.block(Integer.MAX_VALUE)));
+    }
+
+    // Each subscriber gets its own subscription made with these options, shut down completes them once drained
+    public <T> Flow.Publisher<T> publisher(Class<T> classT, SubscriptionOptions<T> options) {
+        if(options.group != null) throw new IllegalArgumentException("Only subscribers with a thread of their own can join a group!");
+        return subscriber -> {
+            Objects.requireNonNull(subscriber);
+            final FlowHandler<T> handler = new FlowHandler<>(handlerName(classT, options), subscriber, classT, options);
+            registerHandler(handler, classT);
+            subscriber.onSubscribe(handler);
+            handler.start();
+        };
+    }
+
+    public <T> void subscribeEventBatch(Consumer<List<T>> handle, Class<T> classT, int maxBatch) throws InterruptedException {
+        subscribeEventBatch(handle, classT, maxBatch, new SubscriptionOptions<>());
+    }
+
+    public <T> void subscribeEventBatch(Consumer<List<T>> handle, Class<T> classT, int maxBatch, SubscriptionOptions<T> options) throws InterruptedException {
+        if(maxBatch <= 0) throw new IllegalArgumentException("Batch size must be positive!");
+        if(options.group != null) throw new IllegalArgumentException("Batch subscribers can't join a group!");
+
+        final MulticastRing<T> ring = rings.get(classT);
+        if(ring != null && canShareRing(options)) {
+            readRingBatch(ring, handle, maxBatch, handlerName(classT, options), classT);
+            return;
+        }
+
+        // Register handler
+        final Handler<T> handler = newHandler(classT, options);
+        handler.stamps = new long[maxBatch];
+        registerHandler(handler, classT);
+
+        // Await the first message and take whatever else is already pending along with it
+        try {
+            T msg;
+            while((msg = getOrWait(handler)) != null) {
+                final List<T> batch = new ArrayList<>(maxBatch);
+                batch.add(msg);
+                handler.drainTo(batch, maxBatch - 1);
+                handle.accept(batch);
+                final long now = System.nanoTime();
+                for(int i = 0; i < batch.size(); i++) handler.stats.handled(handler.stamps[i], now);
             }
+        } finally {
+            removeHandler(handler, classT);
         }
-        removeHandler(node, classT);
     }
 
     public <E> void publishEvent(E message) {
+        publishEvent(message, NORMAL_PRIORITY);
+    }
+
+    // Each priority has a lane of maxPending messages of its own in every handler
+    // Multicast rings have no lanes and keep publishing order
+    public <E> void publishEvent(E message, int priority) {
+        if(priority < NORMAL_PRIORITY || priority > MAX_PRIORITY)
+            throw new IllegalArgumentException("Priority must be between " + NORMAL_PRIORITY + " and " + MAX_PRIORITY + "!");
+        final int stripe = publishing.enter();
+        try {
+            // Fast Path
+            if(shuttingDown) throw new IllegalStateException("Event Bus is shutting down!");
+
+            final Route route = dispatch.get(message.getClass());
+            if(route.log == null) {
+                deliver(route, message, priority);
+                return;
+            }
+            final byte[] record = route.log.serializer.serialize(message);
+            deliver(append(route.log, message.getClass(), Collections.singletonList(record)), message, priority);
+        } finally {
+            leftPublishing(stripe);
+        }
+    }
+
+    // Appends the records, along with those of publishers that queued up meanwhile, and returns the route to deliver
+    // them with. Delivering happens after the lock is let go, so publishers of a logged type no longer wait for
+    // each other's handlers, only for the appends.
+    private Route append(LogBinding log, Class type, List<byte[]> records) {
+        final PendingAppend own = new PendingAppend(records);
+        log.pending.add(own);
+        try {
+            log.lock.lock();
+            if(own.route == null && own.failure == null) {
+                final long timestamp = System.currentTimeMillis();
+                final List<PendingAppend> batch = new ArrayList<>();
+                // Stops at its own records, the ones queued after them are appended by the next one to get the lock
+                for(PendingAppend pending = null; pending != own; ) {
+                    pending = (PendingAppend) log.pending.poll();
+                    try {
+                        log.log.appendAll(timestamp, pending.records);
+                    } catch(RuntimeException e) {
+                        // Only fails the publisher whose record it was, as when it doesn't fit a segment
+                        pending.failure = e;
+                        continue;
+                    }
+                    batch.add(pending);
+                }
+                final Route route = dispatch.get(type);
+                for(PendingAppend appended : batch) appended.route = route;
+            }
+            if(own.failure != null) throw own.failure;
+            return own.route;
+        } finally {
+            log.lock.unlock();
+        }
+    }
+
+    private void deliver(Route route, Object message, int priority) {
+        final long now = System.nanoTime();
+        route.published.increment();
+        for(MulticastRing ring : route.rings) ring.publish(message, now);
+
+        // If there are no subscribers to this type of events discard the message
+        if(route.handlers.length == 0 && route.indexes.length == 0) return;
+
+        final Delivery delivery = new Delivery();
+        for(Handler handler : route.targets(message)) {
+            // Filtered out events never take room nor wake the handler
+            if(!handler.accepts(message)) continue;
+            if(delivery.offer(handler, message, now, priority)) delivery.wake(handler);
+        }
+        delivery.complete();
+    }
+
+    // Only delivered to topic subscriptions
+    @SuppressWarnings("unchecked")
+    public void publishTopic(String topic, Object message) {
+        final int stripe = publishing.enter();
         try {
-            monitor.lock();
             // Fast Path
             if(shuttingDown) throw new IllegalStateException("Event Bus is shutting down!");
 
-            final Class clazz = message.getClass();
-            final NodeLinkedList<Handler> handlers = map.get(clazz);
+            final long now = System.nanoTime();
+            final Delivery delivery = new Delivery();
+            for(Handler handler : matchTopic(topic)) {
+                if(!handler.stats.eventType.isInstance(message) || !handler.accepts(message) || !handler.acceptsField(message)) continue;
+                if(delivery.offer(handler, message, now, NORMAL_PRIORITY)) delivery.wake(handler);
+            }
+            delivery.complete();
+        } finally {
+            leftPublishing(stripe);
+        }
+    }
 
-            // If there are no subscribers to this type of events discard the message
-            if(handlers == null) return;
+    private Handler[] matchTopic(String topic) {
+        final ConcurrentMap<String, Handler[]> cache = topicCache;
+        final Handler[] cached = cache.get(topic);
+        if(cached != null) return cached;
 
-            handlers.forEach(handler -> {
-                if(handler.messages.size() < maxPending) {
-                    handler.messages.push(message);
-                    handler.condition.signal();
+        final Set<Handler> matched = new LinkedHashSet<>();
+        try {
+            monitor.lock();
+            topics.match(topic, matched);
+        } finally {
+            monitor.unlock();
+        }
+        final Handler[] handlers = matched.toArray(new Handler[0]);
+        // Keeps the topics seen from growing the cache without bound
+        if(cache.size() >= TOPIC_CACHE_LIMIT) cache.clear();
+        // Stored in the cache this publisher saw, if it has been replaced since nobody will read it
+        cache.put(topic, handlers);
+        return handlers;
+    }
+
+    public void publishEvents(Collection<?> messages) {
+        publishEvents(messages.toArray());
+    }
+
+    // Events are grouped by class, so a handler subscribed to a common supertype receives each group in
+    // turn and order is only kept between events of the same class
+    public void publishEvents(Object[] messages) {
+        final int stripe = publishing.enter();
+        try {
+            publishAll(messages);
+        } finally {
+            leftPublishing(stripe);
+        }
+    }
+
+    private void publishAll(Object[] messages) {
+        // Fast Path
+        if(shuttingDown) throw new IllegalStateException("Event Bus is shutting down!");
+
+        final Map<Class, List<Object>> groups = new LinkedHashMap<>();
+        for(Object message : messages) groups.computeIfAbsent(message.getClass(), key -> new ArrayList<>()).add(message);
+
+        // Append every group in one go and only wake each handler once for the whole batch
+        final long now = System.nanoTime();
+        final Set<Handler> touched = new HashSet<>();
+        final Delivery delivery = new Delivery();
+        for(Map.Entry<Class, List<Object>> group : groups.entrySet()) {
+            Route route = dispatch.get(group.getKey());
+            if(route.log != null) {
+                try {
+                    // The whole group is appended in one go, serialized before taking the lock
+                    final List<byte[]> records = new ArrayList<>(group.getValue().size());
+                    for(Object message : group.getValue()) records.add(route.log.serializer.serialize(message));
+                    route = append(route.log, group.getKey(), records);
+                } catch(RuntimeException e) {
+                    // None of the group was logged so none of it is delivered, the other groups still are
+                    delivery.failed(e);
+                    continue;
                 }
-            });
+            }
+            route.published.add(group.getValue().size());
+            if(route.handlers.length == 0 && route.indexes.length == 0 && route.rings.length == 0) continue;
+
+            final Object[] events = group.getValue().toArray();
+            for(MulticastRing ring : route.rings) ring.publishAll(events, events.length, now);
+            for(Handler handler : route.handlers) {
+                final int accepted;
+                try {
+                    // Filtering handlers take the events one by one
+                    accepted = handler.filter == null ? handler.deliverAll(events, events.length, now) : 0;
+                } catch(RuntimeException e) {
+                    delivery.failed(e);
+                    continue;
+                }
+                if(accepted > 0) touched.add(handler);
+
+                // Whatever didn't fit goes through the overflow policy of the handler one by one
+                for(int i = accepted; i < events.length; i++) {
+                    if(handler.accepts(events[i]) && delivery.offer(handler, events[i], now, NORMAL_PRIORITY)) touched.add(handler);
+                }
+            }
+            for(FieldIndex index : route.indexes) {
+                for(Object event : events) {
+                    for(Handler handler : index.lookup(event)) {
+                        if(handler.accepts(event) && delivery.offer(handler, event, now, NORMAL_PRIORITY)) touched.add(handler);
+                    }
+                }
+            }
+        }
+        for(Handler handler : touched) delivery.wake(handler);
+        delivery.complete();
+    }
+
+    // Messages each live handler had to discard because of maxPending, by handler name
+    public Map<String, Long> droppedEvents() {
+        final Map<String, Long> drops = new HashMap<>();
+        for(Stats handlerStats : stats) drops.merge(handlerStats.name, handlerStats.dropped.sum(), Long::sum);
+        return drops;
+    }
+
+    public EventBusMetrics metrics() {
+        final Map<Class<?>, Long> published = new HashMap<>();
+        for(Map.Entry<Class, LongAdder> count : publishCounts.entrySet()) published.put(count.getKey(), count.getValue().sum());
+        final List<EventBusMetrics.HandlerMetrics> handlers = new ArrayList<>();
+        for(Stats handlerStats : stats) handlers.add(handlerStats.snapshot());
+        return new EventBusMetrics(published, handlers);
+    }
+
+    // From now on subscribers to classT with a thread of their own read from one shared ring of maxPending slots
+    // Publishing costs the same for any number of them, but the slowest one holds publishers back instead of
+    // having messages dropped. Handlers already subscribed and executor backed handlers keep their mailbox.
+    public void enableMulticast(Class<?> classT) {
+        try {
+            monitor.lock();
+            if(shuttingDown) throw new IllegalStateException("Event Bus is shutting down!");
+            if(rings.containsKey(classT)) return;
+            rings.put(classT, new MulticastRing<>(maxPending));
+            dispatch = newDispatch();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    // From now on every event of exactly classT is also appended to the log before being delivered
+    // Subscribers can then replay it with SubscriptionOptions.replayFrom or replaySince before going live
+    public <T> void enableLog(Class<T> classT, MappedEventLog log, EventSerializer<T> serializer) {
+        try {
+            monitor.lock();
+            if(shuttingDown) throw new IllegalStateException("Event Bus is shutting down!");
+            if(logs.containsKey(classT)) throw new IllegalStateException("There is already a log for " + classT.getSimpleName() + "!");
+            logs.put(classT, new LogBinding<>(log, serializer));
+            dispatch = newDispatch();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    // The last publisher of a stripe may be the one shutdown is waiting for
+    private void leftPublishing(int stripe) {
+        if(!publishing.leave(stripe) || !shuttingDown) return;
+        try {
+            monitor.lock();
+            publishersGone.signalAll();
         } finally {
             monitor.unlock();
         }
@@ -78,73 +1299,386 @@ public class EventBus {
     public void shutdown() throws InterruptedException {
         try {
             monitor.lock();
-            if(!shuttingDown) {
-                for(NodeLinkedList<Handler> handlerList : map.values())
-                    handlerList.forEach(handler -> handler.condition.signal());
-                shuttingDown = true;
+            shuttingDown = true;
+            // Publishers that got past the check finish queueing before handlers drain and exit, or their events
+            // would be lost. Handlers keep taking events meanwhile, so publishers blocked for room get it.
+            while(!publishing.isEmpty()) publishersGone.await();
+
+            RuntimeException failure = null;
+            if(!draining) {
+                draining = true;
+                // A handler failing to wake up doesn't keep the others from it
+                final List<Handler> handlers = new ArrayList<>();
+                for(Handler[] typeHandlers : map.values()) Collections.addAll(handlers, typeHandlers);
+                handlers.addAll(topicPatterns.keySet());
+                for(Handler handler : handlers) {
+                    try {
+                        handler.wakeUp();
+                    } catch(RuntimeException e) {
+                        if(failure == null) failure = e;
+                    }
+                }
+                for(MulticastRing ring : rings.values()) ring.close();
             }
-            while(runningHandlers > 0 && !done) isDone.await();
+            while(runningHandlers > 0) isDone.await();
+            if(windowTimer != null) windowTimer.shutdown();
+            if(failure != null) throw failure;
         } finally {
             monitor.unlock();
         }
     }
 
-    private <T> NodeLinkedList.Node<Handler> registerHandler(Handler<T> handler, Class<T> classT) {
+    private <T> Handler<T> newHandler(Class<T> classT, SubscriptionOptions<T> options) {
+        return new Handler<>(handlerName(classT, options), classT, Thread.currentThread(), options.overflow, () -> newMailbox(options))
+                .filtered(options);
+    }
+
+    // Ring readers take every event, so anything needing a mailbox or a filter can't share it
+    private static boolean canShareRing(SubscriptionOptions<?> options) {
+        return options.conflationKey == null && options.filter == null && options.field == null;
+    }
+
+    private <T> Mailbox<T> newMailbox(SubscriptionOptions<T> options) {
+        if(options.conflationKey != null) return new ConflatingMailbox<>(maxPending, options.conflationKey);
+        return new BoundedRingBuffer<>(maxPending);
+    }
+
+    private String handlerName(Class<?> classT, SubscriptionOptions<?> options) {
+        return options.name != null ? options.name : classT.getSimpleName() + "-" + handlerIds.incrementAndGet();
+    }
+
+    private <T> void registerTopicHandler(Handler<T> handler, String pattern) {
         try {
             monitor.lock();
+            topics.add(pattern, handler);
             runningHandlers += 1;   // Handler working
-            final NodeLinkedList<Handler> event = map.computeIfAbsent(classT, key -> new NodeLinkedList<>());
-            return event.push(handler);
+            topicPatterns.put(handler, pattern);
+            topicCache = new ConcurrentHashMap<>();
+            stats.add(handler.stats);
         } finally {
             monitor.unlock();
         }
     }
 
-    private <T> void removeHandler(NodeLinkedList.Node<Handler> node, Class<T> classT) {
+    private <T> void removeTopicHandler(Handler<T> handler) {
         try {
             monitor.lock();
-            map.get(classT).remove(node);
+            topics.remove(topicPatterns.remove(handler), handler);
+            topicCache = new ConcurrentHashMap<>();
+            stats.remove(handler.stats);
+            handler.close();
+            handlerExited();
         } finally {
             monitor.unlock();
         }
     }
 
-    private <T> Optional<T> getOrWait(Handler handler) throws InterruptedException {
+    private <T> void registerHandler(Handler<T> handler, Class<T> classT) {
         try {
             monitor.lock();
-            while(true) {
+            runningHandlers += 1;   // Handler working
+            addHandler(handler, classT);
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    private <T> void addHandler(Handler<T> handler, Class<T> classT) {
+        try {
+            monitor.lock();
+            final Handler[] handlers = map.get(classT);
+            if(handlers == null) {
+                map.put(classT, new Handler[]{handler});
+            } else {
+                final Handler[] copy = Arrays.copyOf(handlers, handlers.length + 1);
+                copy[handlers.length] = handler;
+                map.put(classT, copy);
+            }
+            dispatch = newDispatch();
+            stats.add(handler.stats);
+        } finally {
+            monitor.unlock();
+        }
+    }
 
-                // If there are still messages to process just do it
-                if(!handler.messages.isEmpty()) {
-                    return Optional.of((T) handler.messages.pull().value);
+    // Unregisters the handler and accounts for its exit
+    private <T> void removeHandler(Handler<T> handler, Class<T> classT) {
+        try {
+            monitor.lock();
+            unregisterHandler(handler, classT);
+            handlerExited();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    private void handlerExited() {
+        try {
+            monitor.lock();
+            // If last handler exiting just notify anyone waiting for shut down
+            if(--runningHandlers == 0) isDone.signalAll();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    private <T> void unregisterHandler(Handler<T> handler, Class<T> classT) {
+        try {
+            monitor.lock();
+            if(handler.closed) return;
+            final Handler[] handlers = map.get(classT);
+            if(handlers.length == 1) {
+                map.remove(classT);
+            } else {
+                final Handler[] copy = new Handler[handlers.length - 1];
+                for(int i = 0, j = 0; i < handlers.length; i++)
+                    if(handlers[i] != handler) copy[j++] = handlers[i];
+                map.put(classT, copy);
+            }
+            dispatch = newDispatch();
+            stats.remove(handler.stats);
+            handler.close();
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    private ClassValue<Route> newDispatch() {
+        return new ClassValue<Route>() {
+            @Override
+            protected Route computeValue(Class<?> type) {
+                final Set<Handler> handlers = new LinkedHashSet<>();
+                final Set<MulticastRing> resolvedRings = new LinkedHashSet<>();
+                collectRoute(type, handlers, resolvedRings, new HashSet<>());
+
+                // Handlers filtering by a field go to the index of their field function instead
+                final List<Handler> unindexed = new ArrayList<>();
+                final Map<Function, Map<Object, List<Handler>>> byField = new IdentityHashMap<>();
+                for(Handler handler : handlers) {
+                    if(handler.field == null) unindexed.add(handler);
+                    else byField.computeIfAbsent(handler.field, key -> new HashMap<>())
+                            .computeIfAbsent(handler.fieldValue, key -> new ArrayList<>()).add(handler);
                 }
-                // Otherwise if is shutting down let handler finish
-                if(shuttingDown) {
-                    runningHandlers -= 1;
-                    return Optional.empty();
+                final List<FieldIndex> indexes = new ArrayList<>();
+                for(Map.Entry<Function, Map<Object, List<Handler>>> field : byField.entrySet()) {
+                    final Map<Object, Handler[]> byValue = new HashMap<>();
+                    for(Map.Entry<Object, List<Handler>> value : field.getValue().entrySet())
+                        byValue.put(value.getKey(), value.getValue().toArray(new Handler[0]));
+                    indexes.add(new FieldIndex(field.getKey(), byValue));
                 }
-                // If no messages and no shut down just wait for a message
-                try {
-                    handler.condition.await();
-                } catch(InterruptedException e) {
-                    // If interrupted just ignore any message
-                    runningHandlers -= 1;
-                    throw e;
+
+                return new Route(unindexed.toArray(new Handler[0]), indexes.toArray(new FieldIndex[0]),
+                        resolvedRings.toArray(new MulticastRing[0]), logs.get(type), publishCounts.computeIfAbsent(type, key -> new LongAdder()));
+            }
+        };
+    }
+
+    // Gathers the handlers and rings of a type, its superclasses and every interface they implement
+    private void collectRoute(Class<?> type, Set<Handler> handlers, Set<MulticastRing> resolvedRings, Set<Class<?>> visited) {
+        if(type == null || !visited.add(type)) return;
+        final Handler[] typeHandlers = map.get(type);
+        if(typeHandlers != null) Collections.addAll(handlers, typeHandlers);
+        final MulticastRing ring = rings.get(type);
+        if(ring != null) resolvedRings.add(ring);
+        collectRoute(type.getSuperclass(), handlers, resolvedRings, visited);
+        for(Class<?> itf : type.getInterfaces()) collectRoute(itf, handlers, resolvedRings, visited);
+    }
+
+    // Reads the shared ring of a multicast type on the subscriber thread until shut down
+    private <T> void readRing(MulticastRing<T> ring, Consumer<T> handle, String name, Class<T> classT) throws InterruptedException {
+        final MulticastRing.Reader reader = joinRing(ring);
+        final Stats readerStats = readerStats(ring, reader, name, classT);
+        try {
+            long available;
+            while((available = ring.waitFor(reader)) >= 0) {
+                readerStats.observePending((int) (ring.lastClaimed() - reader.cursor()));
+                for(long seq = reader.cursor() + 1; seq <= available; seq++) {
+                    handle.accept(ring.get(seq));
+                    readerStats.handled(ring.stampOf(seq), System.nanoTime());
                 }
+                ring.release(reader, available);
             }
+        } finally {
+            stats.remove(readerStats);
+            leaveRing(ring, reader);
+        }
+    }
+
+    private <T> void readRingBatch(MulticastRing<T> ring, Consumer<List<T>> handle, int maxBatch, String name, Class<T> classT) throws InterruptedException {
+        final MulticastRing.Reader reader = joinRing(ring);
+        final Stats readerStats = readerStats(ring, reader, name, classT);
+        try {
+            long available;
+            while((available = ring.waitFor(reader)) >= 0) {
+                readerStats.observePending((int) (ring.lastClaimed() - reader.cursor()));
+                for(long seq = reader.cursor() + 1; seq <= available; ) {
+                    final long first = seq;
+                    final List<T> batch = new ArrayList<>(maxBatch);
+                    for(; seq <= available && batch.size() < maxBatch; seq++) batch.add(ring.get(seq));
+                    handle.accept(batch);
+                    final long now = System.nanoTime();
+                    for(long done = first; done < seq; done++) readerStats.handled(ring.stampOf(done), now);
+                    ring.release(reader, seq - 1);
+                }
+            }
+        } finally {
+            stats.remove(readerStats);
+            leaveRing(ring, reader);
+        }
+    }
+
+    private <T> Stats readerStats(MulticastRing<T> ring, MulticastRing.Reader reader, String name, Class<T> classT) {
+        final Stats readerStats = new Stats(name, classT, () -> (int) Math.max(0, ring.lastClaimed() - reader.cursor()));
+        stats.add(readerStats);
+        return readerStats;
+    }
+
+    private <T> MulticastRing.Reader joinRing(MulticastRing<T> ring) {
+        try {
+            monitor.lock();
+            runningHandlers += 1;   // Handler working
         } finally {
             monitor.unlock();
         }
+        return ring.join();
     }
 
-    // Method to be called by last Handler on exiting
-    private void finish() {
+    private <T> void leaveRing(MulticastRing<T> ring, MulticastRing.Reader reader) {
+        ring.leave(reader);
+        handlerExited();
+    }
+
+    // Handles the logged events on the subscriber thread and registers the handler once nearly caught up
+    // The log is read without holding anything, the lock is only taken to learn the sequence live delivery starts at
+    @SuppressWarnings("unchecked")
+    private <T> void replayAndSubscribe(Consumer<T> handle, Class<T> classT, SubscriptionOptions<T> options) throws InterruptedException {
+        final LogBinding<T> log = logs.get(classT);
+        if(log == null) throw new IllegalArgumentException("There is no log for " + classT.getSimpleName() + "!");
+
+        final Handler<T> handler = newHandler(classT, options);
+        final MappedEventLog.RecordConsumer replay = (seq, timestamp, bytes) -> {
+            final T msg = log.serializer.deserialize(bytes);
+            if(handler.accepts(msg) && handler.acceptsField(msg)) handle.accept(msg);
+        };
+        final long from = Math.max(options.replayOffset, 0), since = Math.max(options.replayTimestamp, 0);
+        final long next = log.log.read(from, since, replay);
+        try {
+            // Records appended from now on are delivered to the handler, the ones before are still read from the log
+            final long live;
+            try {
+                log.lock.lock();
+                registerHandler(handler, classT);
+                live = log.log.nextSeq();
+            } finally {
+                log.lock.unlock();
+            }
+            log.log.read(next, since, (seq, timestamp, bytes) -> {
+                if(seq < live) replay.accept(seq, timestamp, bytes);
+            });
+
+            handleUntilShutdown(handler, handle);
+        } finally {
+            removeHandler(handler, classT);
+        }
+    }
+
+    // Takes events of the group on the subscriber thread until shut down
+    private <T> void consumeAsMember(Consumer<T> handle, Class<T> classT, SubscriptionOptions<T> options) throws InterruptedException {
+        final GroupMember<T> member = joinGroup(classT, options);
+        final GroupHandler<T> group = member.group;
+        final Handler<T> source = group.source(member);
+        try {
+            T msg;
+            while((msg = getOrWait(source, member)) != null) {
+                // Let an idle member take the next one meanwhile
+                if(source == group && !group.messages.isEmpty()) group.signal();
+                handle.accept(msg);
+                group.stats.handled(member.stamps[0], System.nanoTime());
+            }
+        } finally {
+            leaveGroup(member);
+        }
+    }
+
+    // Registers the group on its first member
+    @SuppressWarnings("unchecked")
+    private <T> GroupMember<T> joinGroup(Class<T> classT, SubscriptionOptions<T> options) {
+        try {
+            monitor.lock();
+            GroupHandler<T> group = groups.get(options.group);
+            if(group == null) {
+                group = new GroupHandler<>(classT, options);
+                groups.put(options.group, group);
+                addHandler(group, classT);
+            } else if(group.classT != classT) {
+                throw new IllegalArgumentException("Group " + options.group + " already takes events of another type!");
+            }
+            final GroupMember<T> member = new GroupMember<>(group);
+            final Handler<T>[] copy = Arrays.copyOf(group.members, group.members.length + 1);
+            copy[group.members.length] = member;
+            group.members = copy;
+            runningHandlers += 1;   // Member working
+            return member;
+        } finally {
+            monitor.unlock();
+        }
+    }
+
+    // The last member to leave unregisters the group
+    private <T> void leaveGroup(GroupMember<T> member) {
+        final GroupHandler<T> group = member.group;
         try {
             monitor.lock();
-            done = true;
-            isDone.signal();
+            final Handler<T>[] members = group.members;
+            final Handler<T>[] copy = Arrays.copyOf(members, members.length - 1);
+            for(int i = 0, j = 0; i < members.length; i++)
+                if(members[i] != member) copy[j++] = members[i];
+            group.members = copy;
+            member.close();
+            if(copy.length == 0) {
+                groups.remove(group.group);
+                unregisterHandler(group, group.classT);
+            }
+            handlerExited();
         } finally {
             monitor.unlock();
         }
+        // Events still queued for an ordered member go to the ones left, or count as dropped if none is
+        // Publishers that picked it before it was swapped out hand theirs back too once they see it closed
+        if(group.options.orderingKey != null) group.handBack(member);
+    }
+
+    // Await and execute until shut down
+    private <T> void handleUntilShutdown(Handler<T> handler, Consumer<T> handle) throws InterruptedException {
+        T msg;
+        while((msg = getOrWait(handler)) != null) {
+            handle.accept(msg);
+            handler.stats.handled(handler.stamps[0], System.nanoTime());
+        }
+    }
+
+    // Returns null when the bus is shutting down and there are no more messages to process
+    private <T> T getOrWait(Handler<T> handler) throws InterruptedException {
+        return getOrWait(handler, handler);
+    }
+
+    // Takes from source on behalf of waiter, which is the one parked and unparked
+    private <T> T getOrWait(Handler<T> source, Handler<T> waiter) throws InterruptedException {
+        while(true) {
+            // If there are still messages to process just do it
+            T msg = source.poll(waiter.stamps);
+            if(msg != null) return msg;
+
+            // Otherwise if is shutting down let handler finish, after a last look for late messages
+            if(draining) return source.poll(waiter.stamps);
+
+            // If interrupted just ignore any message
+            if(Thread.interrupted()) throw new InterruptedException();
+
+            // Publishers only unpark a waiting handler so check again after announcing it
+            waiter.waiting = true;
+            if(source.messages.isEmpty() && !draining) LockSupport.park(this);
+            waiter.waiting = false;
+        }
     }
 }
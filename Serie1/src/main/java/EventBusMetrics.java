@@ -0,0 +1,55 @@
+import util.LatencyHistogram;
+
+import java.util.List;
+import java.util.Map;
+
+// Snapshot of the EventBus counters, read without the bus monitor while publishers and handlers keep going
+public class EventBusMetrics {
+
+    public static class HandlerMetrics {
+        public final String name;
+        public final Class<?> eventType;
+        // Messages waiting to be handled when the snapshot was taken and the most ever seen waiting
+        public final int pending;
+        public final int peakPending;
+        public final long handled;
+        // Messages discarded because maxPending was reached
+        public final long dropped;
+        // From the moment a message was queued to the end of its handler call
+        public final LatencyHistogram.Snapshot latency;
+
+        HandlerMetrics(String name, Class<?> eventType, int pending, int peakPending, long handled, long dropped,
+                       LatencyHistogram.Snapshot latency) {
+            this.name = name;
+            this.eventType = eventType;
+            this.pending = pending;
+            this.peakPending = peakPending;
+            this.handled = handled;
+            this.dropped = dropped;
+            this.latency = latency;
+        }
+    }
+
+    private final Map<Class<?>, Long> published;
+    private final List<HandlerMetrics> handlers;
+
+    EventBusMetrics(Map<Class<?>, Long> published, List<HandlerMetrics> handlers) {
+        this.published = published;
+        this.handlers = handlers;
+    }
+
+    // Events published per concrete class, whether or not someone was subscribed
+    public Map<Class<?>, Long> published() {
+        return published;
+    }
+
+    public List<HandlerMetrics> handlers() {
+        return handlers;
+    }
+
+    public HandlerMetrics handler(String name) {
+        for(HandlerMetrics handler : handlers)
+            if(handler.name.equals(name)) return handler;
+        return null;
+    }
+}
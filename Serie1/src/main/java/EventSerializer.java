@@ -0,0 +1,6 @@
+// Turns the events of a type into bytes and back, used to keep them in an event log
+public interface EventSerializer<T> {
+    byte[] serialize(T event);
+
+    T deserialize(byte[] bytes);
+}
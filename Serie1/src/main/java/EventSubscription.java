@@ -0,0 +1,7 @@
+// Handle to a subscription that doesn't hold a thread of its own
+public interface EventSubscription {
+    // Stops delivering events, a message already being handled still completes
+    void unsubscribe();
+
+    boolean isActive();
+}
@@ -1,24 +1,123 @@
+import util.IntObjectTable;
 import util.Timeouts;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class KeyedExchanger<T> {
-    private final Lock monitor = new ReentrantLock();
-    private final Map<Integer, PlaceHolder> map = new HashMap<>();
+    // Exchanges in a row on a key that found its stripe locked before the key gets an arena
+    private static final int INFLATE_AFTER = 8;
+    // Most keys of a stripe having an arena at once
+    private static final int MAX_ARENAS = 4;
+    // Slot races lost before the arena grows a slot
+    private static final int GROW_AFTER = 2;
+    private static final int SPINS = 1 << 10;
+
+    // Expires the exchanges of every instance waiting asynchronously, so waiting takes no thread of its own
+    private static final ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        final Thread thread = new Thread(r, "KeyedExchanger-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        // Exchanges that find a partner cancel their expiry, which must not stay queued until it is due
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    // Keys are spread over stripes each with a lock and a table of its own, so unrelated keys rarely contend
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    private final int inflateAfter;
+    private final int arenaSlots;
+
+    private class Stripe {
+        final Lock monitor = new ReentrantLock();
+        // Waiters by key, keys aren't boxed and no entry is allocated per waiter
+        final IntObjectTable<PlaceHolder> map = new IntObjectTable<>();
+        // Arenas of the hot keys, copy on write so exchanges look them up without the lock
+        volatile Arena[] arenas = newArenas(0);
+        // Key whose exchanges last found the lock taken and how many times in a row they did
+        int contendedKey;
+        int contentions = 0;
+
+        Arena arenaOf(int key) {
+            for(Arena arena : arenas) if(arena.key == key) return arena;
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Arena[] newArenas(int size) {
+        return (Arena[]) new KeyedExchanger.Arena[size];
+    }
+
+    public KeyedExchanger() {
+        this(4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    // Rounded up to a power of two
+    public KeyedExchanger(int stripes) {
+        this(stripes, INFLATE_AFTER, Math.min(32, Runtime.getRuntime().availableProcessors()));
+    }
+
+    @SuppressWarnings("unchecked")
+    KeyedExchanger(int stripes, int inflateAfter, int arenaSlots) {
+        if(stripes <= 0) throw new IllegalArgumentException("Stripes must be positive!");
+        if(inflateAfter <= 0) throw new IllegalArgumentException("Inflate after must be positive!");
+        if(arenaSlots <= 0) throw new IllegalArgumentException("Arena slots must be positive!");
+        this.inflateAfter = inflateAfter;
+        this.arenaSlots = arenaSlots;
+        int size = 1;
+        while(size < stripes) size <<= 1;
+        this.stripes = (Stripe[]) new KeyedExchanger.Stripe[size];
+        for(int i = 0; i < size; i++) this.stripes[i] = new Stripe();
+        this.stripeMask = size - 1;
+    }
+
+    private Stripe stripeOf(int key) {
+        // Spreads consecutive keys over different stripes
+        final int h = key * 0x9E3779B9;
+        return stripes[(h ^ (h >>> 16)) & stripeMask];
+    }
 
     private class PlaceHolder {
         final Condition condition;
+        // Set instead of the condition when the waiter is asynchronous
+        final CompletableFuture<Optional<T>> future;
+        ScheduledFuture<?> expiry;
         T value;
 
         PlaceHolder(T value, Condition condition) {
             this.value = value;
             this.condition = condition;
+            this.future = null;
+        }
+
+        PlaceHolder(T value, CompletableFuture<Optional<T>> future) {
+            this.value = value;
+            this.condition = null;
+            this.future = future;
+        }
+
+        // Wakes the waiter once it got the other value
+        void release() {
+            if(future == null) {
+                condition.signal();
+                return;
+            }
+            expiry.cancel(false);
+            future.complete(Optional.of(value));
         }
 
         T switchAndGet(T other) {
@@ -28,9 +127,197 @@ public class KeyedExchanger<T> {
         }
     }
 
+    // Waiter in an arena slot, whoever takes it out of the slot hands it the data
+    private class Node {
+        final T item;
+        final Thread waiter = Thread.currentThread();
+        // Set when the waiter is asynchronous, it then only ever waits in slot 0
+        final CompletableFuture<Optional<T>> future;
+        volatile ScheduledFuture<?> expiry;
+        T match;
+        volatile boolean matched = false;
+
+        Node(T item, CompletableFuture<Optional<T>> future) {
+            this.item = item;
+            this.future = future;
+        }
+    }
+
+    // Slots a hot key spreads its waiters over, matched without taking the stripe lock
+    // It grows when threads race for the same slots and shrinks when waiters find nobody, like the arena of an Exchanger
+    private class Arena {
+        final int key;
+        final AtomicReferenceArray<Node> slots = new AtomicReferenceArray<>(arenaSlots);
+        // Slots in use, threads only pick among them
+        final AtomicInteger bound = new AtomicInteger(1);
+        // Threads inside, -1 once deflated
+        final AtomicInteger inside = new AtomicInteger(0);
+
+        Arena(int key) {
+            this.key = key;
+        }
+
+        boolean enter() {
+            for(int n; (n = inside.get()) >= 0; )
+                if(inside.compareAndSet(n, n + 1)) return true;
+            return false;
+        }
+
+        // The last thread to leave after finding nobody gives the key back to the stripe table
+        void leave(Stripe stripe, boolean idle) {
+            if(inside.decrementAndGet() == 0 && idle) deflate(stripe, this);
+        }
+
+        // Hands the data to a waiter taken out of its slot
+        private void hand(Stripe stripe, Node other, T myData) {
+            other.match = myData;
+            other.matched = true;
+            if(other.future == null) {
+                LockSupport.unpark(other.waiter);
+                return;
+            }
+            // Still being scheduled if the waiter was taken right away, it then finds its slot empty when it runs
+            final ScheduledFuture<?> expiry = other.expiry;
+            if(expiry != null) expiry.cancel(false);
+            other.future.complete(Optional.of(myData));
+            leave(stripe, false);
+        }
+
+        Optional<T> exchange(Stripe stripe, T myData, long limit) throws InterruptedException {
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            final Node me = new Node(myData, null);
+            int index = random.nextInt(bound.get());
+            int collisions = 0, scanned = 0;
+            while(true) {
+                final Node other = slots.get(index);
+                if(other != null) {
+                    // Taking the waiter out of its slot first makes this the only thread handing it data
+                    if(slots.compareAndSet(index, other, null)) {
+                        hand(stripe, other, myData);
+                        return Optional.of(other.item);
+                    }
+                } else if(Timeouts.isTimeout(Timeouts.remaining(limit))) {
+                    // Can't wait but a partner may still be waiting in another slot
+                    if(++scanned >= bound.get()) return Optional.empty();
+                    index = (index + 1) % bound.get();
+                    continue;
+                } else if(slots.compareAndSet(index, null, me)) {
+                    if(await(me, index, limit)) return Optional.of(me.match);
+                    // Left the slot, waiters drift towards slot 0 where they can park
+                    index = Math.max(0, Math.min(index - 1, bound.get() - 1));
+                    continue;
+                }
+
+                // Lost the race for the slot
+                if(++collisions >= GROW_AFTER) {
+                    final int b = bound.get();
+                    if(b < slots.length()) bound.compareAndSet(b, b + 1);
+                    collisions = 0;
+                }
+                index = random.nextInt(bound.get());
+            }
+        }
+
+        // Called by a thread that entered, which leaves unless it waits
+        CompletableFuture<Optional<T>> exchangeAsync(Stripe stripe, T myData, long timeoutNs) {
+            // Looks for a partner in every slot, waiters beyond the bound drift back into it
+            for(int i = 0; i < slots.length(); i++) {
+                final Node other = slots.get(i);
+                if(other != null && slots.compareAndSet(i, other, null)) {
+                    hand(stripe, other, myData);
+                    leave(stripe, false);
+                    return CompletableFuture.completedFuture(Optional.of(other.item));
+                }
+            }
+            if(timeoutNs <= 0) {
+                leave(stripe, true);
+                return CompletableFuture.completedFuture(Optional.empty());
+            }
+
+            final Node me = new Node(myData, new CompletableFuture<>());
+            while(!slots.compareAndSet(0, null, me)) {
+                final Node other = slots.get(0);
+                if(other != null && slots.compareAndSet(0, other, null)) {
+                    hand(stripe, other, myData);
+                    leave(stripe, false);
+                    return CompletableFuture.completedFuture(Optional.of(other.item));
+                }
+            }
+            me.expiry = timer.schedule(() -> {
+                if(slots.compareAndSet(0, me, null)) {
+                    me.future.complete(Optional.empty());
+                    leave(stripe, true);
+                }
+            }, timeoutNs, TimeUnit.NANOSECONDS);
+            return me.future;
+        }
+
+        // Returns false if the waiter left its slot unmatched
+        private boolean await(Node me, int index, long limit) throws InterruptedException {
+            for(int spins = 0; !me.matched; ) {
+                if(spins < SPINS) {
+                    spins++;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                final long remaining = Timeouts.remaining(limit);
+                // Only slot 0 parks, a waiter nobody came for anywhere else means the arena is larger than needed
+                if(index > 0 || Timeouts.isTimeout(remaining)) {
+                    if(slots.compareAndSet(index, me, null)) {
+                        final int b = bound.get();
+                        if(index > 0 && b > 1) bound.compareAndSet(b, b - 1);
+                        return false;
+                    }
+                    awaitTaken(me);
+                    return true;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remaining));
+                if(Thread.interrupted()) {
+                    if(slots.compareAndSet(index, me, null)) throw new InterruptedException();
+                    awaitTaken(me);
+                    Thread.currentThread().interrupt();
+                    return true;
+                }
+            }
+            return true;
+        }
+
+        // A partner took the waiter out of its slot and is about to hand it its data
+        private void awaitTaken(Node me) {
+            while(!me.matched) Thread.yield();
+        }
+    }
+
     public Optional<T> exchange(int key, T myData, int timeoutMs) throws InterruptedException {
+        final Stripe stripe = stripeOf(key);
+        final long limit = Timeouts.start(timeoutMs);
+        while(true) {
+            final Arena arena = stripe.arenaOf(key);
+            if(arena != null && arena.enter()) {
+                boolean idle = true;
+                try {
+                    final Optional<T> result = arena.exchange(stripe, myData, limit);
+                    idle = !result.isPresent();
+                    return result;
+                } finally {
+                    arena.leave(stripe, idle);
+                }
+            }
+            final Optional<T> result = exchange(stripe, key, myData, limit);
+            // Null when the key has an arena to go to
+            if(result != null) return result;
+        }
+    }
+
+    private Optional<T> exchange(Stripe stripe, int key, T myData, long limit) throws InterruptedException {
+        final IntObjectTable<PlaceHolder> map = stripe.map;
+        PlaceHolder matched = null;
+        final boolean contended = !stripe.monitor.tryLock();
         try {
-            monitor.lock();
+            if(contended) stripe.monitor.lock();
+
+            // Went hot while this thread wasn't looking
+            if(stripe.arenaOf(key) != null) return null;
 
             PlaceHolder val = map.get(key);
 
@@ -39,20 +326,22 @@ public class KeyedExchanger<T> {
                 // Remove so other Threads don't access this value between condition signal and mutual exclusion acquire by first exchanger
                 map.remove(key);
                 T t = val.switchAndGet(myData);
-                val.condition.signal();
+                if(val.future == null) val.release();
+                else matched = val;
                 return Optional.of(t);
             }
 
+            // Nobody waits on the key so its exchanges can move to an arena
+            if(contended && inflate(stripe, key)) return null;
+
             // Check if can wait
-            if(Timeouts.noWait(timeoutMs)) return Optional.empty();
+            long remaining = Timeouts.remaining(limit);
+            if(Timeouts.isTimeout(remaining)) return Optional.empty();
 
             // Insert value into map
-            val = new PlaceHolder(myData, monitor.newCondition());
+            val = new PlaceHolder(myData, stripe.monitor.newCondition());
             map.put(key, val);
 
-            // Calculate times
-            long limit = Timeouts.start(timeoutMs);
-            long remaining = Timeouts.remaining(limit);
             // Stay waiting while no Timeout or no Trade
             for(; !Timeouts.isTimeout(remaining); remaining = Timeouts.remaining(limit)) {
                 try {
@@ -68,13 +357,111 @@ public class KeyedExchanger<T> {
                 // If value references are different the other Thread already switched
                 if(val.value != myData) return Optional.of(val.value);
             }
+            // Switched while the time ran out, the value is no longer in the map
+            if(val.value != myData) return Optional.of(val.value);
             map.remove(key);
             return Optional.empty();
         } finally {
-            monitor.unlock();
+            stripe.monitor.unlock();
+            // Asynchronous waiters carry on in this thread, which must not hold the lock
+            if(matched != null) matched.release();
         }
     }
 
+    // Completes right away when a partner is waiting, otherwise on the thread of the partner or on expiry
+    public CompletableFuture<Optional<T>> exchangeAsync(int key, T myData, long timeout, TimeUnit unit) {
+        final Stripe stripe = stripeOf(key);
+        // Not truncated to milliseconds, which would give up right away on timeouts under one
+        final long timeoutNs = unit.toNanos(timeout);
+        while(true) {
+            final Arena arena = stripe.arenaOf(key);
+            if(arena != null && arena.enter()) return arena.exchangeAsync(stripe, myData, timeoutNs);
+            final CompletableFuture<Optional<T>> result = exchangeAsync(stripe, key, myData, timeoutNs);
+            // Null when the key has an arena to go to
+            if(result != null) return result;
+        }
+    }
+
+    private CompletableFuture<Optional<T>> exchangeAsync(Stripe stripe, int key, T myData, long timeoutNs) {
+        final IntObjectTable<PlaceHolder> map = stripe.map;
+        PlaceHolder matched = null;
+        try {
+            stripe.monitor.lock();
+
+            if(stripe.arenaOf(key) != null) return null;
+
+            PlaceHolder val = map.get(key);
+            if(val != null) {
+                map.remove(key);
+                final T t = val.switchAndGet(myData);
+                if(val.future == null) val.release();
+                else matched = val;
+                return CompletableFuture.completedFuture(Optional.of(t));
+            }
+
+            if(timeoutNs <= 0) return CompletableFuture.completedFuture(Optional.empty());
+
+            // The expiry is set before the lock is released so whoever switches can cancel it
+            final PlaceHolder waiter = new PlaceHolder(myData, new CompletableFuture<>());
+            map.put(key, waiter);
+            waiter.expiry = timer.schedule(() -> expire(stripe, key, waiter), timeoutNs, TimeUnit.NANOSECONDS);
+            return waiter.future;
+        } finally {
+            stripe.monitor.unlock();
+            if(matched != null) matched.release();
+        }
+    }
+
+    private void expire(Stripe stripe, int key, PlaceHolder waiter) {
+        try {
+            stripe.monitor.lock();
+            // Already switched
+            if(stripe.map.get(key) != waiter) return;
+            stripe.map.remove(key);
+        } finally {
+            stripe.monitor.unlock();
+        }
+        waiter.future.complete(Optional.empty());
+    }
+
+    // Called with the stripe lock held
+    private boolean inflate(Stripe stripe, int key) {
+        if(stripe.contendedKey != key) {
+            stripe.contendedKey = key;
+            stripe.contentions = 0;
+        }
+        final Arena[] arenas = stripe.arenas;
+        if(++stripe.contentions < inflateAfter || arenas.length == MAX_ARENAS) return false;
+        stripe.contentions = 0;
+
+        final Arena[] updated = newArenas(arenas.length + 1);
+        System.arraycopy(arenas, 0, updated, 0, arenas.length);
+        updated[arenas.length] = new Arena(key);
+        stripe.arenas = updated;
+        return true;
+    }
+
+    private void deflate(Stripe stripe, Arena arena) {
+        try {
+            stripe.monitor.lock();
+            // Threads that come later find it deflated and go to the stripe table
+            if(!arena.inside.compareAndSet(0, -1)) return;
+
+            final Arena[] arenas = stripe.arenas;
+            final Arena[] updated = newArenas(arenas.length - 1);
+            for(int i = 0, j = 0; i < arenas.length; i++)
+                if(arenas[i] != arena) updated[j++] = arenas[i];
+            stripe.arenas = updated;
+        } finally {
+            stripe.monitor.unlock();
+        }
+    }
+
+    // Whether the exchanges on the key go through an arena
+    boolean hasArena(int key) {
+        return stripeOf(key).arenaOf(key) != null;
+    }
+
     public Optional<T> exchange(int key, T myData) throws InterruptedException {
         return exchange(key, myData, Integer.MAX_VALUE);
     }
@@ -0,0 +1,25 @@
+// What publishing does when a handler already has maxPending messages waiting
+public final class OverflowPolicy {
+    enum Kind {DROP_NEWEST, DROP_OLDEST, BLOCK, FAIL}
+
+    // Discard the message being published
+    public static final OverflowPolicy DROP_NEWEST = new OverflowPolicy(Kind.DROP_NEWEST, 0);
+    // Discard the oldest pending message to make room for the new one
+    public static final OverflowPolicy DROP_OLDEST = new OverflowPolicy(Kind.DROP_OLDEST, 0);
+    // Discard the message and make publishEvent throw a RejectedExecutionException
+    public static final OverflowPolicy FAIL = new OverflowPolicy(Kind.FAIL, 0);
+
+    final Kind kind;
+    final int timeout;
+
+    private OverflowPolicy(Kind kind, int timeout) {
+        this.kind = kind;
+        this.timeout = timeout;
+    }
+
+    // Wait up to timeout milliseconds for the handler to make room and discard the message if it doesn't
+    public static OverflowPolicy block(int timeout) {
+        if(timeout < 0) throw new IllegalArgumentException("Timeout can't be negative!");
+        return new OverflowPolicy(Kind.BLOCK, timeout);
+    }
+}
@@ -0,0 +1,81 @@
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+// Per subscription settings for the EventBus, every setter returns the same instance to allow chaining
+public class SubscriptionOptions<T> {
+    String name;
+    OverflowPolicy overflow = OverflowPolicy.DROP_NEWEST;
+    Function<? super T, ?> conflationKey;
+    String group;
+    Function<? super T, ?> orderingKey;
+    Predicate<? super T> filter;
+    Function<? super T, ?> field;
+    Object fieldValue;
+    long replayOffset = -1;
+    long replayTimestamp = -1;
+
+    // Name used to report this handler, by default the event type followed by a sequential number
+    public SubscriptionOptions<T> name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    public SubscriptionOptions<T> overflow(OverflowPolicy overflow) {
+        if(overflow == null) throw new IllegalArgumentException("Overflow policy can't be null!");
+        this.overflow = overflow;
+        return this;
+    }
+
+    // Only the newest pending event of each key is kept, a new one replaces the pending one in place
+    // maxPending then bounds the number of distinct keys waiting
+    public SubscriptionOptions<T> conflateBy(Function<? super T, ?> key) {
+        if(key == null) throw new IllegalArgumentException("Key function can't be null!");
+        this.conflationKey = key;
+        return this;
+    }
+
+    // Subscribers of the same group share its events, each one goes to a single member
+    // The first member to join sets the options of the whole group
+    public SubscriptionOptions<T> group(String group) {
+        if(group == null) throw new IllegalArgumentException("Group name can't be null!");
+        this.group = group;
+        return this;
+    }
+
+    // Events of a group with the same key go to the same member, so they are handled in order
+    public SubscriptionOptions<T> orderBy(Function<? super T, ?> key) {
+        if(key == null) throw new IllegalArgumentException("Key function can't be null!");
+        this.orderingKey = key;
+        return this;
+    }
+
+    // Runs on the publisher thread, events it rejects are never queued nor wake the handler
+    public SubscriptionOptions<T> filter(Predicate<? super T> filter) {
+        if(filter == null) throw new IllegalArgumentException("Filter can't be null!");
+        this.filter = filter;
+        return this;
+    }
+
+    // Only events whose field equals value, subscriptions sharing the same field function instance are
+    // looked up by value so publishers call it once for all of them
+    public SubscriptionOptions<T> where(Function<? super T, ?> field, Object value) {
+        if(field == null) throw new IllegalArgumentException("Field function can't be null!");
+        this.field = field;
+        this.fieldValue = value;
+        return this;
+    }
+
+    // Starts by handling the events kept in the log of the type from offset on, then carries on with live ones
+    public SubscriptionOptions<T> replayFrom(long offset) {
+        if(offset < 0) throw new IllegalArgumentException("Offset can't be negative!");
+        this.replayOffset = offset;
+        return this;
+    }
+
+    // Same as replayFrom but starting with the first event logged at or after timestamp, in epoch milliseconds
+    public SubscriptionOptions<T> replaySince(long timestamp) {
+        if(timestamp < 0) throw new IllegalArgumentException("Timestamp can't be negative!");
+        this.replayTimestamp = timestamp;
+        return this;
+    }
+}
@@ -0,0 +1,132 @@
+import util.Timeouts;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// MessageQueue with one lock for senders and another for receivers, as in the two lock queue of Michael and Scott
+// Senders append at the tail and receivers take from the head, only taking the receivers lock to wake them when
+// the queue was empty. Cancelled messages stay in the list and are skipped by receivers.
+public class TwoLockMessageQueue<T> {
+    private static final int PENDING = 0, DELIVERED = 1, CANCELLED = 2;
+
+    private final Lock sendLock = new ReentrantLock();
+    private final Lock receiveLock = new ReentrantLock();
+    // Receivers wait for it when there are no messages
+    private final Condition notEmpty = receiveLock.newCondition();
+
+    // Messages in the list, cancelled ones included, so each side can tell whether the other one is needed
+    private final AtomicInteger count = new AtomicInteger(0);
+    // Guarded by the receive lock, always a message already taken
+    private Message head = new Message(null);
+    // Guarded by the send lock
+    private Message last = head;
+
+    private class Message implements SendStatus {
+        final T message;
+        final AtomicInteger state = new AtomicInteger(PENDING);
+        // Guarded by the receive lock, only created for senders that wait
+        Condition delivered;
+        Message next;
+
+        Message(T message) {
+            this.message = message;
+        }
+
+        @Override
+        public boolean isSent() {
+            return state.get() == DELIVERED;
+        }
+
+        @Override
+        public boolean tryCancel() {
+            return state.compareAndSet(PENDING, CANCELLED);
+        }
+
+        @Override
+        public boolean await(int timeout) throws InterruptedException {
+            // Happy Path
+            if(isSent()) return true;
+
+            if(Timeouts.noWait(timeout)) return false;
+
+            try {
+                // Delivering happens under the receive lock so the receiver either sees the condition or is done
+                receiveLock.lock();
+                if(delivered == null) delivered = receiveLock.newCondition();
+
+                long limit = Timeouts.start(timeout);
+                long remaining = Timeouts.remaining(limit);
+                for(; !Timeouts.isTimeout(remaining); remaining = Timeouts.remaining(limit)) {
+                    if(isSent()) return true;
+                    delivered.await(remaining, TimeUnit.MILLISECONDS);
+                }
+                return isSent();
+            } finally {
+                receiveLock.unlock();
+            }
+        }
+    }
+
+    public SendStatus send(T sentMsg) {
+        final Message msg = new Message(sentMsg);
+        final int before;
+        try {
+            sendLock.lock();
+            last = last.next = msg;
+            before = count.getAndIncrement();
+        } finally {
+            sendLock.unlock();
+        }
+        // Receivers only wait on an empty queue so only then they need waking
+        if(before == 0) {
+            try {
+                receiveLock.lock();
+                notEmpty.signal();
+            } finally {
+                receiveLock.unlock();
+            }
+        }
+        return msg;
+    }
+
+    public Optional<T> receive(int timeout) throws InterruptedException {
+        try {
+            receiveLock.lock();
+            Message msg = take();
+            if(msg == null) {
+                // If we can't wait just return an empty Optional
+                if(Timeouts.noWait(timeout)) return Optional.empty();
+
+                final long limit = Timeouts.start(timeout);
+                long remaining = Timeouts.remaining(limit);
+                for(; msg == null; msg = take(), remaining = Timeouts.remaining(limit)) {
+                    if(Timeouts.isTimeout(remaining)) return Optional.empty();
+                    notEmpty.await(remaining, TimeUnit.MILLISECONDS);
+                }
+            }
+            // Senders only signal the first receiver, which passes it on while there are more messages
+            if(count.get() > 0) notEmpty.signal();
+            if(msg.delivered != null) msg.delivered.signalAll();
+            return Optional.of(msg.message);
+        } finally {
+            receiveLock.unlock();
+        }
+    }
+
+    // Called with the receive lock held, returns null once only cancelled messages were left
+    private Message take() {
+        while(count.get() > 0) {
+            final Message first = head.next;
+            // Unlinked from the list so a sender holding its status doesn't keep the rest reachable
+            head.next = null;
+            head = first;
+            count.getAndDecrement();
+            if(first.state.compareAndSet(PENDING, DELIVERED)) return first;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,48 @@
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+
+// Settings of a windowed aggregation subscription, every setter returns the same instance to allow chaining
+public class WindowOptions<T> {
+    final long size;
+    final long slide;
+    String name;
+    ToDoubleFunction<? super T> value = event -> 1;
+    Function<? super T, ?> groupBy;
+
+    private WindowOptions(long size, long slide) {
+        this.size = size;
+        this.slide = slide;
+    }
+
+    // Back to back windows of size milliseconds
+    public static <T> WindowOptions<T> tumbling(long size) {
+        return sliding(size, size);
+    }
+
+    // Windows of size milliseconds starting every slide milliseconds, size must be a multiple of slide
+    public static <T> WindowOptions<T> sliding(long size, long slide) {
+        if(slide <= 0) throw new IllegalArgumentException("Slide must be positive!");
+        if(size < slide || size % slide != 0) throw new IllegalArgumentException("Window size must be a multiple of the slide!");
+        return new WindowOptions<>(size, slide);
+    }
+
+    // Name used to report this subscription, by default the event type followed by a sequential number
+    public WindowOptions<T> name(String name) {
+        this.name = name;
+        return this;
+    }
+
+    // What is summed up of each event, by default 1 so the sum is the count
+    public WindowOptions<T> value(ToDoubleFunction<? super T> value) {
+        if(value == null) throw new IllegalArgumentException("Value function can't be null!");
+        this.value = value;
+        return this;
+    }
+
+    // Aggregates separately the events of each key
+    public WindowOptions<T> groupBy(Function<? super T, ?> key) {
+        if(key == null) throw new IllegalArgumentException("Key function can't be null!");
+        this.groupBy = key;
+        return this;
+    }
+}
@@ -0,0 +1,57 @@
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+// What a windowed aggregation subscription gets once per window with events
+public class WindowSummary {
+
+    public static class Aggregate {
+        public final long count;
+        public final double sum;
+        public final double min;
+        public final double max;
+
+        public Aggregate(long count, double sum, double min, double max) {
+            this.count = count;
+            this.sum = sum;
+            this.min = min;
+            this.max = max;
+        }
+
+        public double average() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        Aggregate merge(Aggregate other) {
+            return new Aggregate(count + other.count, sum + other.sum, Math.min(min, other.min), Math.max(max, other.max));
+        }
+    }
+
+    // Epoch milliseconds, start inclusive and end exclusive
+    public final long start;
+    public final long end;
+    // Without a group by everything is under the null key
+    private final Map<Object, Aggregate> groups;
+
+    public WindowSummary(long start, long end, Map<Object, Aggregate> groups) {
+        this.start = start;
+        this.end = end;
+        this.groups = Collections.unmodifiableMap(groups);
+    }
+
+    public Set<Object> keys() {
+        return groups.keySet();
+    }
+
+    // Null when no event of the key fell in the window
+    public Aggregate get(Object key) {
+        return groups.get(key);
+    }
+
+    // Every group together
+    public Aggregate total() {
+        Aggregate total = new Aggregate(0, 0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY);
+        for(Aggregate aggregate : groups.values()) total = total.merge(aggregate);
+        return total;
+    }
+}
@@ -0,0 +1,121 @@
+package util;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Bounded multi-producer multi-consumer queue over a preallocated array
+// Each slot keeps a sequence telling if it is free for position pos (pos) or holds the value of pos (pos + 1)
+public class BoundedRingBuffer<T> implements Mailbox<T> {
+    private final int capacity;
+    private final Object[] buffer;
+    // Opaque value stored along with each element, such as the time it was queued
+    private final long[] stamps;
+    private final AtomicLongArray sequences;
+
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    public BoundedRingBuffer(int capacity) {
+        if(capacity <= 0) throw new IllegalArgumentException("Capacity must be positive!");
+        this.capacity = capacity;
+        this.buffer = new Object[capacity];
+        this.stamps = new long[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++) sequences.lazySet(i, i);
+    }
+
+    public boolean offer(T value) {
+        return offer(value, 0);
+    }
+
+    @Override
+    public boolean offer(T value, long stamp) {
+        long pos;
+        do {
+            pos = tail.get();
+            if(pos - head.get() >= capacity) return false;
+        } while(!tail.compareAndSet(pos, pos + 1));
+        publish(pos, value, stamp);
+        return true;
+    }
+
+    // Claims room for as many of the first count values as fit with a single CAS, returns how many were taken
+    public int offerAll(T[] values, int count) {
+        return offerAll(values, count, 0);
+    }
+
+    @Override
+    public int offerAll(T[] values, int count, long stamp) {
+        long pos;
+        int claimed;
+        do {
+            pos = tail.get();
+            claimed = (int) Math.min(count, capacity - (pos - head.get()));
+            if(claimed <= 0) return 0;
+        } while(!tail.compareAndSet(pos, pos + claimed));
+        for(int i = 0; i < claimed; i++) publish(pos + i, values[i], stamp);
+        return claimed;
+    }
+
+    private void publish(long pos, T value, long stamp) {
+        final int index = index(pos);
+        // A consumer that already moved the head may still be emptying this slot
+        while(sequences.get(index) != pos) Thread.yield();
+        buffer[index] = value;
+        stamps[index] = stamp;
+        sequences.set(index, pos + 1);
+    }
+
+    @Override
+    public T poll() {
+        return poll(null, 0);
+    }
+
+    // Also copies the stamp of the element taken into stampsOut[at] when stampsOut isn't null
+    @Override
+    @SuppressWarnings("unchecked")
+    public T poll(long[] stampsOut, int at) {
+        while(true) {
+            final long pos = head.get();
+            final int index = index(pos);
+            final long seq = sequences.get(index);
+            // Either empty or the producer that claimed this position didn't write it yet
+            if(seq < pos + 1) return null;
+            if(seq == pos + 1 && head.compareAndSet(pos, pos + 1)) {
+                final T value = (T) buffer[index];
+                if(stampsOut != null) stampsOut[at] = stamps[index];
+                buffer[index] = null;
+                sequences.set(index, pos + capacity);
+                return value;
+            }
+        }
+    }
+
+    public int drainTo(List<T> list, int max) {
+        int drained = 0;
+        for(T value; drained < max && (value = poll()) != null; drained++) list.add(value);
+        return drained;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        final long pos = head.get();
+        return sequences.get(index(pos)) != pos + 1;
+    }
+
+    // Positions claimed by producers and not yet taken, including the ones still being written
+    @Override
+    public int size() {
+        final long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity));
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    private int index(long pos) {
+        return (int) (pos % capacity);
+    }
+}
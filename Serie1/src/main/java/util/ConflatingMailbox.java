@@ -0,0 +1,78 @@
+package util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+// Keeps only the newest value of each key, in the order each key became pending
+// A value whose key is already pending replaces the old one in place, so the size is bounded by the distinct keys
+public class ConflatingMailbox<T> implements Mailbox<T> {
+
+    private static class Entry<T> {
+        final T value;
+        final long stamp;
+
+        Entry(T value, long stamp) {
+            this.value = value;
+            this.stamp = stamp;
+        }
+    }
+
+    private final Function<? super T, ?> keyOf;
+    private final BoundedRingBuffer<Object> keys;
+    private final ConcurrentMap<Object, Entry<T>> pending = new ConcurrentHashMap<>();
+    // Keys of values replaced while their key found no room, taken after the ring
+    private final Queue<Object> stranded = new ConcurrentLinkedQueue<>();
+
+    public ConflatingMailbox(int capacity, Function<? super T, ?> keyOf) {
+        this.keyOf = keyOf;
+        this.keys = new BoundedRingBuffer<>(capacity);
+    }
+
+    @Override
+    public boolean offer(T value, long stamp) {
+        final Object key = keyOf.apply(value);
+        final Entry<T> entry = new Entry<>(value, stamp);
+        // Replaced a pending value, its key is already queued
+        if(pending.put(key, entry) != null) return true;
+        if(keys.offer(key)) return true;
+
+        // No room for another key, take the value back unless a newer one replaced it meanwhile
+        if(pending.remove(key, entry)) return false;
+        // Its publisher counted on the key being queued, so this one was conflated and the key must be queued anyway
+        stranded.add(key);
+        return true;
+    }
+
+    @Override
+    public int offerAll(T[] values, int count, long stamp) {
+        for(int i = 0; i < count; i++)
+            if(!offer(values[i], stamp)) return i;
+        return count;
+    }
+
+    @Override
+    public T poll(long[] stampsOut, int at) {
+        Object key;
+        while((key = keys.poll()) != null || (key = stranded.poll()) != null) {
+            final Entry<T> entry = pending.remove(key);
+            // Its value may have been taken back by an offer that found no room
+            if(entry == null) continue;
+            if(stampsOut != null) stampsOut[at] = entry.stamp;
+            return entry.value;
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return keys.isEmpty() && stranded.isEmpty();
+    }
+
+    @Override
+    public int size() {
+        return keys.size() + stranded.size();
+    }
+}
@@ -0,0 +1,41 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+// Counts the threads inside a section with a counter per stripe of threads, so entering and leaving from
+// different cores doesn't contend on one location. A thread leaves through the stripe it entered by, so no
+// stripe ever goes below zero and the section is empty once every stripe was seen at zero.
+public class InFlightCounter {
+    // Ints from one stripe to the next, keeping each one on a cache line of its own
+    private static final int PAD = 16;
+
+    private final AtomicIntegerArray counts;
+    private final int mask;
+
+    public InFlightCounter() {
+        int stripes = 1;
+        while(stripes < 2 * Runtime.getRuntime().availableProcessors()) stripes <<= 1;
+        counts = new AtomicIntegerArray(stripes * PAD);
+        mask = stripes - 1;
+    }
+
+    // Returns the stripe to hand back to leave
+    public int enter() {
+        // Thread ids are handed out in sequence, so threads started together land on different stripes
+        final int stripe = (int) Thread.currentThread().getId() & mask;
+        counts.getAndIncrement(stripe * PAD);
+        return stripe;
+    }
+
+    // Returns true if no one else is left in the stripe
+    public boolean leave(int stripe) {
+        return counts.decrementAndGet(stripe * PAD) == 0;
+    }
+
+    // Only exact once no one can enter anymore, otherwise it may miss someone entering a stripe already looked at
+    public boolean isEmpty() {
+        for(int stripe = 0; stripe <= mask; stripe++)
+            if(counts.get(stripe * PAD) != 0) return false;
+        return true;
+    }
+}
@@ -0,0 +1,118 @@
+package util;
+
+// Map from int keys to non null values with open addressing and linear probing, keys are never boxed
+// Removal shifts back the entries that follow instead of leaving tombstones, so probe runs stay short
+// Not thread safe
+public class IntObjectTable<V> {
+    private static final int MIN_CAPACITY = 8;
+
+    private int[] keys;
+    // A null value marks an empty slot
+    private Object[] values;
+    private int size = 0;
+    private int mask;
+
+    public IntObjectTable() {
+        this(MIN_CAPACITY);
+    }
+
+    // Rounded up to a power of two
+    public IntObjectTable(int capacity) {
+        int length = MIN_CAPACITY;
+        while(length < capacity) length <<= 1;
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        keys = new int[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        for(int i = slot(key); values[i] != null; i = (i + 1) & mask)
+            if(keys[i] == key) return (V) values[i];
+        return null;
+    }
+
+    // Returns the value it replaced
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value) {
+        if(value == null) throw new IllegalArgumentException("Value can't be null!");
+        int i = slot(key);
+        for(; values[i] != null; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                final V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value;
+        // Kept at most half full
+        if(++size > (mask + 1) >> 1) resize(keys.length << 1);
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int i = slot(key);
+        for(; values[i] != null; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                final V removed = (V) values[i];
+                shiftBack(i);
+                size--;
+                return removed;
+            }
+        }
+        return null;
+    }
+
+    // Moves into the hole every following entry of the run that would no longer be found past it
+    private void shiftBack(int hole) {
+        for(int i = (hole + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+            final int home = slot(keys[i]);
+            // The entry can fill the hole only if the hole lies between its home and where it is now
+            if(((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                hole = i;
+            }
+        }
+        values[hole] = null;
+    }
+
+    private void resize(int length) {
+        final int[] oldKeys = keys;
+        final Object[] oldValues = values;
+        allocate(length);
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldValues[j] == null) continue;
+            int i = slot(oldKeys[j]);
+            while(values[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Murmur3 finalizer, a different mix than the one spreading keys over KeyedExchanger stripes
+    // Keys sharing a stripe share the low bits of that mix, with it they would only ever land on a fraction of the slots
+    private int slot(int key) {
+        int h = key;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+}
@@ -0,0 +1,122 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+// Mailbox split in priority lanes, each one a mailbox of its own, higher lanes are taken first
+// Lanes above 0 are only created when first used, so while nothing else is used it costs a volatile read per call
+// Every FAIRNESS_PERIOD takes the lower lanes get a turn, in rotation, so they are never starved
+public class LanedMailbox<T> implements Mailbox<T> {
+    private static final int FAIRNESS_PERIOD = 8;
+
+    private final Supplier<Mailbox<T>> newLane;
+    private final Mailbox<T> base;
+    private final AtomicReferenceArray<Mailbox<T>> lanes;
+    // Highest lane created so far, raised only after the lane is in place
+    private final AtomicInteger top = new AtomicInteger();
+
+    // Only touched by consumers, when there are several a race only bends the fairness a bit
+    private int sinceTurn = 0;
+    private int nextTurn = 0;
+
+    public LanedMailbox(int lanes, Supplier<Mailbox<T>> newLane) {
+        if(lanes <= 0) throw new IllegalArgumentException("Lanes must be positive!");
+        this.newLane = newLane;
+        this.base = newLane.get();
+        this.lanes = new AtomicReferenceArray<>(lanes);
+        this.lanes.set(0, base);
+    }
+
+    public int lanes() {
+        return lanes.length();
+    }
+
+    @Override
+    public boolean offer(T value, long stamp) {
+        return base.offer(value, stamp);
+    }
+
+    public boolean offer(T value, long stamp, int lane) {
+        return lane(lane).offer(value, stamp);
+    }
+
+    @Override
+    public int offerAll(T[] values, int count, long stamp) {
+        return base.offerAll(values, count, stamp);
+    }
+
+    @Override
+    public T poll(long[] stampsOut, int at) {
+        final int top = this.top.get();
+        if(top == 0) return base.poll(stampsOut, at);
+
+        if(++sinceTurn >= FAIRNESS_PERIOD) {
+            sinceTurn = 0;
+            final T value = pollTurn(top, stampsOut, at);
+            if(value != null) return value;
+        }
+        for(int lane = top; lane >= 0; lane--) {
+            final Mailbox<T> mailbox = lanes.get(lane);
+            final T value = mailbox == null ? null : mailbox.poll(stampsOut, at);
+            if(value != null) return value;
+        }
+        return null;
+    }
+
+    // Takes from the lane that was first queued, used to make room in it
+    public T pollLane(int lane) {
+        final Mailbox<T> mailbox = lanes.get(lane);
+        return mailbox == null ? null : mailbox.poll();
+    }
+
+    public T pollLane(int lane, long[] stampsOut, int at) {
+        final Mailbox<T> mailbox = lanes.get(lane);
+        return mailbox == null ? null : mailbox.poll(stampsOut, at);
+    }
+
+    // Gives the turn to the first lane below top with values, starting after the last one served
+    private T pollTurn(int top, long[] stampsOut, int at) {
+        for(int i = 0; i < top; i++) {
+            final int lane = (nextTurn + i) % top;
+            final Mailbox<T> mailbox = lanes.get(lane);
+            final T value = mailbox == null ? null : mailbox.poll(stampsOut, at);
+            if(value != null) {
+                nextTurn = lane + 1;
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        for(int lane = top.get(); lane >= 0; lane--) {
+            final Mailbox<T> mailbox = lanes.get(lane);
+            if(mailbox != null && !mailbox.isEmpty()) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(int lane = top.get(); lane >= 0; lane--) {
+            final Mailbox<T> mailbox = lanes.get(lane);
+            if(mailbox != null) size += mailbox.size();
+        }
+        return size;
+    }
+
+    private Mailbox<T> lane(int lane) {
+        Mailbox<T> mailbox = lanes.get(lane);
+        if(mailbox != null) return mailbox;
+
+        // Racing publishers may both build one, only the first is kept
+        lanes.compareAndSet(lane, null, newLane.get());
+        mailbox = lanes.get(lane);
+        int observed;
+        while(lane > (observed = top.get()) && !top.compareAndSet(observed, lane)) ;
+        return mailbox;
+    }
+}
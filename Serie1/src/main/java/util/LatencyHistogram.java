@@ -0,0 +1,59 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Latencies in power of two buckets of nanoseconds, bucket i counts values in [2^i, 2^(i+1))
+// Recording is a single atomic increment so it can stay on in production
+public class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+    public void record(long nanos) {
+        buckets.incrementAndGet(bucket(nanos));
+    }
+
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) counts[i] = buckets.get(i);
+        return new Snapshot(counts);
+    }
+
+    private static int bucket(long nanos) {
+        return nanos <= 1 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+        private final long count;
+
+        Snapshot(long[] counts) {
+            this.counts = counts;
+            long total = 0;
+            for(long bucketCount : counts) total += bucketCount;
+            this.count = total;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        // Number of values recorded in [2^bucket, 2^(bucket+1)) nanoseconds
+        public long bucketCount(int bucket) {
+            return counts[bucket];
+        }
+
+        // Upper bound of the bucket holding the given fraction of the values, 0 when nothing was recorded
+        public long percentile(double fraction) {
+            if(fraction < 0 || fraction > 1) throw new IllegalArgumentException("Fraction must be between 0 and 1!");
+            if(count == 0) return 0;
+            final long rank = Math.max(1, (long) Math.ceil(fraction * count));
+            long seen = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if(seen >= rank) return i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package util;
+
+// Where the EventBus keeps the messages of one handler until it takes them
+// Stamps are opaque values kept with each message, such as the time it was queued
+public interface Mailbox<T> {
+    // Returns false when there is no room for the value
+    boolean offer(T value, long stamp);
+
+    // Takes the first values that fit and returns how many
+    int offerAll(T[] values, int count, long stamp);
+
+    // Also copies the stamp of the value taken into stampsOut[at] when stampsOut isn't null, null when empty
+    T poll(long[] stampsOut, int at);
+
+    default T poll() {
+        return poll(null, 0);
+    }
+
+    // True when there is no value ready to be taken
+    boolean isEmpty();
+
+    int size();
+}
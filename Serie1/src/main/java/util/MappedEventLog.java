@@ -0,0 +1,248 @@
+package util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Append only log of records kept in memory mapped segment files, each named after the sequence of its first record
+// A record is [size][sequence][timestamp][bytes], its size including the header. Sequences are dense and start at 0, so they double as offsets.
+// Appends are serialized by a lock, reads take no lock and can run along with them
+public class MappedEventLog implements Closeable {
+    private static final int HEADER = Integer.BYTES + Long.BYTES + Long.BYTES;
+    private static final String SUFFIX = ".log";
+
+    @FunctionalInterface
+    public interface RecordConsumer {
+        void accept(long seq, long timestamp, byte[] bytes);
+    }
+
+    private static class Segment {
+        final long firstSeq;
+        final Path path;
+        final MappedByteBuffer buffer;
+        // Bytes holding complete records, written last so readers never see a partial one
+        volatile int limit;
+        volatile long firstTimestamp = Long.MAX_VALUE;
+        volatile long lastTimestamp = Long.MIN_VALUE;
+
+        Segment(long firstSeq, Path path, MappedByteBuffer buffer) {
+            this.firstSeq = firstSeq;
+            this.path = path;
+            this.buffer = buffer;
+        }
+    }
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+    private final long maxAge;
+
+    private final Lock lock = new ReentrantLock();
+    private final ConcurrentNavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private Segment active;
+    private long nextSeq;
+
+    // Segments are dropped, oldest first, while they take more than maxBytes or their newest record is older
+    // than maxAge milliseconds, checked on every append. The segment being appended to is always kept
+    public MappedEventLog(Path dir, int segmentBytes, long maxBytes, long maxAge) throws IOException {
+        if(segmentBytes <= HEADER) throw new IllegalArgumentException("Segments must be larger than a record header!");
+        if(maxBytes <= 0 || maxAge <= 0) throw new IllegalArgumentException("Retention must be positive!");
+        this.dir = Files.createDirectories(dir);
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+        recover();
+    }
+
+    // Maps the segments left by a previous run and carries on after their last record
+    private void recover() throws IOException {
+        final List<Path> paths = new ArrayList<>();
+        try(DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+            for(Path path : files) paths.add(path);
+        }
+        Collections.sort(paths);
+        for(Path path : paths) {
+            final String name = path.getFileName().toString();
+            final Segment segment = new Segment(Long.parseLong(name.substring(0, name.length() - SUFFIX.length())), path, map(path));
+            nextSeq = segment.firstSeq;
+            int pos = 0;
+            // Never written space reads as a zero size
+            while(pos + HEADER <= segmentBytes && segment.buffer.getInt(pos) > 0) {
+                final long timestamp = segment.buffer.getLong(pos + Integer.BYTES + Long.BYTES);
+                if(segment.firstTimestamp == Long.MAX_VALUE) segment.firstTimestamp = timestamp;
+                segment.lastTimestamp = timestamp;
+                nextSeq = segment.buffer.getLong(pos + Integer.BYTES) + 1;
+                pos += segment.buffer.getInt(pos);
+            }
+            segment.limit = pos;
+            segments.put(segment.firstSeq, segment);
+            active = segment;
+        }
+    }
+
+    // Returns the sequence of the record
+    public long append(long timestamp, byte[] bytes) {
+        try {
+            lock.lock();
+            expire(timestamp);
+            return write(timestamp, bytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Writes every record under a single lock acquisition, returns the sequence of the first one
+    // Either every record is written or, if one doesn't fit in a segment, none is
+    public long appendAll(long timestamp, List<byte[]> records) {
+        for(byte[] bytes : records) checkFits(bytes);
+        try {
+            lock.lock();
+            expire(timestamp);
+            final long first = nextSeq;
+            for(byte[] bytes : records) write(timestamp, bytes);
+            return first;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkFits(byte[] bytes) {
+        if(HEADER + bytes.length > segmentBytes) throw new IllegalArgumentException("Record doesn't fit in a segment!");
+    }
+
+    private long write(long timestamp, byte[] bytes) {
+        checkFits(bytes);
+        final int size = HEADER + bytes.length;
+        if(active == null || active.limit + size > segmentBytes) roll(timestamp);
+
+        final long seq = nextSeq++;
+        final MappedByteBuffer buffer = active.buffer;
+        final int pos = active.limit;
+        buffer.putInt(pos, size);
+        buffer.putLong(pos + Integer.BYTES, seq);
+        buffer.putLong(pos + Integer.BYTES + Long.BYTES, timestamp);
+        final ByteBuffer body = buffer.duplicate();
+        body.position(pos + HEADER);
+        body.put(bytes);
+        if(active.firstTimestamp == Long.MAX_VALUE) active.firstTimestamp = timestamp;
+        active.lastTimestamp = timestamp;
+        active.limit = pos + size;
+        return seq;
+    }
+
+    private void roll(long now) {
+        try {
+            if(active != null) active.buffer.force();
+            final Path path = dir.resolve(String.format("%020d", nextSeq) + SUFFIX);
+            active = new Segment(nextSeq, path, map(path));
+            segments.put(active.firstSeq, active);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        expire(now);
+    }
+
+    // Only looks at the oldest segment unless it has to go, so it is cheap enough for every append
+    private void expire(long now) {
+        Map.Entry<Long, Segment> oldest;
+        while((oldest = segments.firstEntry()) != null && oldest.getValue() != active
+                && ((long) segments.size() * segmentBytes > maxBytes || oldest.getValue().lastTimestamp < now - maxAge)) {
+            // Readers still holding the mapping keep reading it, the space is freed once they let it go
+            segments.remove(oldest.getKey());
+            try {
+                Files.deleteIfExists(oldest.getValue().path);
+            } catch(IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    private MappedByteBuffer map(Path path) throws IOException {
+        try(RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.setLength(segmentBytes);
+            // The mapping stays valid once the channel is closed
+            return file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        }
+    }
+
+    // Hands every record from fromSeq on with a timestamp not before fromTimestamp to the consumer, in order
+    // Records already expired are skipped, returns the sequence after the last record looked at
+    public long read(long fromSeq, long fromTimestamp, RecordConsumer consumer) {
+        final Map.Entry<Long, Segment> start = segments.floorEntry(fromSeq);
+        long next = fromSeq;
+        for(Map.Entry<Long, Segment> entry = start != null ? start : segments.ceilingEntry(fromSeq), following; entry != null; entry = following) {
+            final Segment segment = entry.getValue();
+            following = segments.higherEntry(entry.getKey());
+            // The next segment starts before fromTimestamp so none of this one is wanted
+            if(following != null && following.getValue().firstTimestamp < fromTimestamp) {
+                next = Math.max(next, following.getKey());
+                continue;
+            }
+
+            final ByteBuffer view = segment.buffer.duplicate();
+            // Read after looking for the following segment, once there is one this segment takes no more records
+            // Otherwise records appended to it meanwhile could be skipped when moving on to a newer one
+            final int limit = segment.limit;
+            for(int pos = 0; pos < limit; ) {
+                final int size = view.getInt(pos);
+                final long seq = view.getLong(pos + Integer.BYTES);
+                final long timestamp = view.getLong(pos + Integer.BYTES + Long.BYTES);
+                if(seq >= next && timestamp >= fromTimestamp) {
+                    final byte[] bytes = new byte[size - HEADER];
+                    view.position(pos + HEADER);
+                    view.get(bytes);
+                    consumer.accept(seq, timestamp, bytes);
+                }
+                if(seq >= next) next = seq + 1;
+                pos += size;
+            }
+        }
+        return next;
+    }
+
+    // Sequence the next record appended will get
+    public long nextSeq() {
+        try {
+            lock.lock();
+            return nextSeq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Sequence of the oldest record still kept
+    public long firstSeq() {
+        final Map.Entry<Long, Segment> first = segments.firstEntry();
+        return first != null ? first.getKey() : nextSeq();
+    }
+
+    // Appends only reach the page cache, this makes them durable
+    public void force() {
+        try {
+            lock.lock();
+            if(active != null) active.buffer.force();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        force();
+    }
+}
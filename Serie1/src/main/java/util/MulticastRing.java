@@ -0,0 +1,202 @@
+package util;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Preallocated ring shared by every reader (Disruptor style)
+// Publishers claim sequences and each reader follows with its own cursor, so publishing costs the same for any
+// number of readers. A publisher about to lap the slowest reader waits for it.
+public class MulticastRing<T> {
+    // Times a reader checks again before blocking
+    private static final int SPINS = 100;
+
+    public static class Reader {
+        // Last sequence this reader is done with
+        final AtomicLong cursor = new AtomicLong(-1);
+
+        public long cursor() {
+            return cursor.get();
+        }
+    }
+
+    private final int size;
+    private final Object[] entries;
+    // Opaque value stored along with each entry, such as the time it was published
+    private final long[] stamps;
+    // Sequence held by each slot once it is written
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    // Lowest reader cursor seen by the last publisher that had to look, never ahead of the real one
+    private volatile long gatingCache = -1;
+
+    private final Lock lock = new ReentrantLock();
+    private volatile Reader[] readers = new Reader[0];
+    private final Condition hasEntries = lock.newCondition();
+    private final AtomicInteger waitingReaders = new AtomicInteger();
+    private volatile boolean closed = false;
+
+    public MulticastRing(int size) {
+        if(size <= 0) throw new IllegalArgumentException("Size must be positive!");
+        this.size = size;
+        this.entries = new Object[size];
+        this.stamps = new long[size];
+        this.published = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++) published.lazySet(i, -1);
+    }
+
+    public void publish(T value, long stamp) {
+        final long seq = claimed.incrementAndGet();
+        awaitRoom(seq);
+        write(seq, value, stamp);
+        signalReaders();
+    }
+
+    // Claims the whole range at once and wakes the readers a single time
+    public void publishAll(T[] values, int count, long stamp) {
+        if(count == 0) return;
+        final long first = claimed.addAndGet(count) - count + 1;
+        for(int i = 0; i < count; i++) {
+            awaitRoom(first + i);
+            write(first + i, values[i], stamp);
+        }
+        signalReaders();
+    }
+
+    private void awaitRoom(long seq) {
+        final long wrapPoint = seq - size;
+        if(wrapPoint <= gatingCache) return;
+        long min;
+        while(wrapPoint > (min = minimumCursor(wrapPoint))) LockSupport.parkNanos(1);
+        gatingCache = min;
+    }
+
+    private long minimumCursor(long noReaders) {
+        final Reader[] observed = readers;
+        if(observed.length == 0) return noReaders;
+        long min = Long.MAX_VALUE;
+        for(Reader reader : observed) min = Math.min(min, reader.cursor.get());
+        return min;
+    }
+
+    private void write(long seq, T value, long stamp) {
+        final int index = index(seq);
+        entries[index] = value;
+        stamps[index] = stamp;
+        published.set(index, seq);
+    }
+
+    private void signalReaders() {
+        if(waitingReaders.get() > 0) {
+            try {
+                lock.lock();
+                hasEntries.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // The reader only sees values published after it joined
+    public Reader join() {
+        final Reader reader = new Reader();
+        try {
+            lock.lock();
+            final Reader[] copy = Arrays.copyOf(readers, readers.length + 1);
+            copy[readers.length] = reader;
+            readers = copy;
+        } finally {
+            lock.unlock();
+        }
+        // Publishers hold back while the cursor is still -1, so nothing past this point can be overwritten
+        reader.cursor.set(claimed.get());
+        return reader;
+    }
+
+    public void leave(Reader reader) {
+        try {
+            lock.lock();
+            final Reader[] copy = new Reader[readers.length - 1];
+            for(int i = 0, j = 0; i < readers.length; i++)
+                if(readers[i] != reader) copy[j++] = readers[i];
+            readers = copy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Waits for the sequence after the reader cursor and returns the highest one readable without gaps
+    // Returns -1 once the ring is closed and the reader saw everything that was claimed
+    public long waitFor(Reader reader) throws InterruptedException {
+        final long next = reader.cursor.get() + 1;
+        for(int spins = 0; !isPublished(next); spins++) {
+            if(closed && next > claimed.get()) return -1;
+            if(Thread.interrupted()) throw new InterruptedException();
+            if(spins < SPINS) {
+                Thread.yield();
+                continue;
+            }
+
+            // Publishers only signal when someone is waiting so check again after announcing it
+            waitingReaders.incrementAndGet();
+            try {
+                lock.lock();
+                while(!isPublished(next) && !(closed && next > claimed.get())) hasEntries.await();
+            } finally {
+                lock.unlock();
+                waitingReaders.decrementAndGet();
+            }
+        }
+
+        long available = next;
+        for(long last = claimed.get(); available < last && isPublished(available + 1); available++) ;
+        return available;
+    }
+
+    @SuppressWarnings("unchecked")
+    public T get(long seq) {
+        return (T) entries[index(seq)];
+    }
+
+    // Only valid until the reader releases seq
+    public long stampOf(long seq) {
+        return stamps[index(seq)];
+    }
+
+    // Highest sequence handed to a publisher, it may still be being written
+    public long lastClaimed() {
+        return claimed.get();
+    }
+
+    // Gives back every slot up to seq to the publishers
+    public void release(Reader reader, long seq) {
+        reader.cursor.set(seq);
+    }
+
+    public void close() {
+        closed = true;
+        try {
+            lock.lock();
+            hasEntries.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean isPublished(long seq) {
+        return published.get(index(seq)) == seq;
+    }
+
+    private int index(long seq) {
+        return (int) (seq % size);
+    }
+}
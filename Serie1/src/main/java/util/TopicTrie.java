@@ -0,0 +1,72 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Index of values by dot separated topic patterns, matching a topic costs its depth and not the number of patterns
+// In a pattern * matches exactly one level and # any number of levels, including none
+// Not thread safe, callers must serialize every call
+public class TopicTrie<V> {
+    public static final String ONE_LEVEL = "*";
+    public static final String ANY_LEVELS = "#";
+
+    private static class Node<V> {
+        final Map<String, Node<V>> children = new HashMap<>();
+        final List<V> values = new ArrayList<>();
+
+        boolean isEmpty() {
+            return children.isEmpty() && values.isEmpty();
+        }
+    }
+
+    private final Node<V> root = new Node<>();
+
+    public void add(String pattern, V value) {
+        Node<V> node = root;
+        for(String level : levels(pattern)) node = node.children.computeIfAbsent(level, key -> new Node<>());
+        node.values.add(value);
+    }
+
+    public boolean remove(String pattern, V value) {
+        return remove(root, levels(pattern), 0, value);
+    }
+
+    // Prunes the nodes left empty on the way back
+    private boolean remove(Node<V> node, String[] levels, int at, V value) {
+        if(at == levels.length) return node.values.remove(value);
+        final Node<V> child = node.children.get(levels[at]);
+        if(child == null || !remove(child, levels, at + 1, value)) return false;
+        if(child.isEmpty()) node.children.remove(levels[at]);
+        return true;
+    }
+
+    // Adds every value whose pattern matches the topic, a value is added once per pattern it was added with
+    public void match(String topic, Collection<V> out) {
+        match(root, levels(topic), 0, out);
+    }
+
+    private void match(Node<V> node, String[] levels, int at, Collection<V> out) {
+        final Node<V> any = node.children.get(ANY_LEVELS);
+        if(any != null)
+            for(int skip = at; skip <= levels.length; skip++) match(any, levels, skip, out);
+
+        if(at == levels.length) {
+            out.addAll(node.values);
+            return;
+        }
+        final Node<V> exact = node.children.get(levels[at]);
+        if(exact != null) match(exact, levels, at + 1, out);
+        final Node<V> one = node.children.get(ONE_LEVEL);
+        if(one != null) match(one, levels, at + 1, out);
+    }
+
+    private static String[] levels(String topic) {
+        final String[] levels = topic.split("\\.", -1);
+        for(String level : levels)
+            if(level.isEmpty()) throw new IllegalArgumentException("Topic " + topic + " has an empty level!");
+        return levels;
+    }
+}
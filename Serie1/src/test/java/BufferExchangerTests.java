@@ -0,0 +1,68 @@
+import org.junit.Test;
+import util.Helper;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferExchangerTests {
+    private final Helper helper = new Helper();
+    private final BufferExchanger exchanger = new BufferExchanger(2);
+
+    @Test
+    public void testPingPong() throws InterruptedException {
+        /// Arrange
+        final int nSwaps = 10_000;
+        final ByteBuffer a = ByteBuffer.allocateDirect(Integer.BYTES), b = ByteBuffer.allocateDirect(Integer.BYTES);
+        final int[] received = new int[nSwaps];
+        final boolean[] recycled = {true};
+
+        /// Act
+        // The producer fills a buffer and gets back the one the consumer emptied
+        helper.createAndStart(() -> {
+            ByteBuffer buffer = a;
+            for(int i = 0; i < nSwaps; i++) {
+                buffer.clear();
+                buffer.putInt(i).flip();
+                buffer = exchanger.exchange(0, buffer, 5_000);
+            }
+        });
+        helper.createAndStart(() -> {
+            ByteBuffer buffer = b;
+            for(int i = 0; i < nSwaps; i++) {
+                buffer = exchanger.exchange(0, buffer, 5_000);
+                if(buffer != a && buffer != b) recycled[0] = false;
+                received[i] = buffer.getInt();
+            }
+        });
+
+        helper.join();
+
+        /// Assert
+        // Only the two buffers ever went back and forth
+        assertTrue(recycled[0]);
+        for(int i = 0; i < nSwaps; i++) assertEquals(i, received[i]);
+    }
+
+    @Test
+    public void testExchangeTimeout() throws InterruptedException {
+        /// Arrange
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(Integer.BYTES);
+
+        /// Act
+        final long start = System.currentTimeMillis();
+        final ByteBuffer other = exchanger.exchange(1, buffer, 100);
+        final long elapsed = System.currentTimeMillis() - start;
+
+        /// Assert
+        assertNull(other);
+        assertTrue(elapsed >= 100);
+        // Nobody is left waiting on the channel
+        assertNull(exchanger.exchange(1, buffer, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownChannel() throws InterruptedException {
+        exchanger.exchange(2, ByteBuffer.allocateDirect(Integer.BYTES), 0);
+    }
+}
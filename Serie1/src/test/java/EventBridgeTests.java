@@ -0,0 +1,256 @@
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+
+public class EventBridgeTests {
+
+    private static final EventSerializer<String> STRINGS = new EventSerializer<String>() {
+        @Override
+        public byte[] serialize(String event) {
+            return event.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    private static final EventSerializer<Integer> INTEGERS = new EventSerializer<Integer>() {
+        @Override
+        public byte[] serialize(Integer event) {
+            return ByteBuffer.allocate(Integer.BYTES).putInt(event).array();
+        }
+
+        @Override
+        public Integer deserialize(byte[] bytes) {
+            return ByteBuffer.wrap(bytes).getInt();
+        }
+    };
+
+    @Test
+    public void testForwardBetweenBuses() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus busA = new EventBus(1_000), busB = new EventBus(1_000);
+        final int nEvents = 500;
+        final List<String> receivedA = Collections.synchronizedList(new ArrayList<>());
+        final List<String> receivedB = Collections.synchronizedList(new ArrayList<>());
+        final EventBridge bridgeA = new EventBridge(busA), bridgeB = new EventBridge(busB);
+        bridgeA.forward(String.class, 1, STRINGS);
+        bridgeB.forward(String.class, 1, STRINGS);
+
+        final Runnable r1 = () -> {
+            try {
+                busA.subscribeEvent(receivedA::add, String.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r2 = () -> {
+            try {
+                busB.subscribeEvent(receivedB::add, String.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1), th2 = new Thread(r2);
+        th1.start();
+        th2.start();
+        final InetSocketAddress address = bridgeA.listen(0);
+        bridgeB.connect(address);
+
+        Thread.sleep(100); // Allow threads to subscribe and bridgeA to accept
+        for(int j = 0; j < nEvents; j++) {
+            busA.publishEvent("A" + j);
+            busB.publishEvent("B" + j);
+        }
+        Thread.sleep(500); // Allow the bridges to carry the events across
+        bridgeA.close();
+        bridgeB.close();
+        busA.shutdown();
+        busB.shutdown();
+        th1.join();
+        th2.join();
+
+        /// Assert
+        // Each bus got its own events and the other one's, in order and without echoes
+        assertEquals(2 * nEvents, receivedA.size());
+        assertEquals(2 * nEvents, receivedB.size());
+        final List<String> fromB = new ArrayList<>(), fromA = new ArrayList<>();
+        for(String event : receivedA) if(event.startsWith("B")) fromB.add(event);
+        for(String event : receivedB) if(event.startsWith("A")) fromA.add(event);
+        for(int j = 0; j < nEvents; j++) {
+            assertEquals("B" + j, fromB.get(j));
+            assertEquals("A" + j, fromA.get(j));
+        }
+    }
+
+    @Test
+    public void testBlockedSubscriberDoesntStallSockets() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus busA = new EventBus(1_000), busB = new EventBus(1_000);
+        final int nEvents = 100;
+        final List<Integer> receivedA = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+        final EventBridge bridgeA = new EventBridge(busA), bridgeB = new EventBridge(busB);
+        bridgeA.forward(String.class, 1, STRINGS);
+        bridgeB.forward(String.class, 1, STRINGS);
+        bridgeA.forward(Integer.class, 2, INTEGERS);
+        bridgeB.forward(Integer.class, 2, INTEGERS);
+
+        // Holds up whoever publishes the strings received on B
+        busB.subscribeEventInline(str -> {
+            try {
+                release.await();
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, String.class);
+        busA.subscribeEventInline(receivedA::add, Integer.class);
+
+        /// Act
+        bridgeB.connect(bridgeA.listen(0));
+        Thread.sleep(100); // Allow bridgeA to accept
+        busA.publishEvent("Blocking");
+        Thread.sleep(100); // Allow B to get stuck publishing it
+        for(int j = 0; j < nEvents; j++) busB.publishEvent(j);
+        Thread.sleep(500); // Allow the bridges to carry the events across
+        final int received = receivedA.size();
+        release.countDown();
+        bridgeA.close();
+        bridgeB.close();
+        busA.shutdown();
+        busB.shutdown();
+
+        /// Assert
+        // B kept writing to A while its subscriber was stuck
+        assertEquals(nEvents, received);
+    }
+
+    @Test
+    public void testOversizedFrame() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus busA = new EventBus(10), busB = new EventBus(10);
+        final EventBridge bridgeA = new EventBridge(busA, 1024), bridgeB = new EventBridge(busB);
+        final InetSocketAddress address = bridgeA.listen(0);
+
+        /// Act
+        // Announces a frame of nearly 2GB
+        final SocketChannel rogue = SocketChannel.open(address);
+        rogue.write((ByteBuffer) ByteBuffer.allocate(Integer.BYTES).putInt(Integer.MAX_VALUE).flip());
+        Thread.sleep(100); // Allow bridgeA to read it
+        final int afterRogue = bridgeA.peers();
+        bridgeB.connect(address);
+        Thread.sleep(100); // Allow bridgeA to accept
+        final int afterConnect = bridgeA.peers();
+        rogue.close();
+        bridgeA.close();
+        bridgeB.close();
+        busA.shutdown();
+        busB.shutdown();
+
+        /// Assert
+        // The peer was dropped without allocating anything and the bridge still accepts others
+        assertEquals(0, afterRogue);
+        assertEquals(1, afterConnect);
+    }
+
+    @Test
+    public void testOversizedEventSkipped() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus busA = new EventBus(10), busB = new EventBus(10);
+        final List<String> receivedB = Collections.synchronizedList(new ArrayList<>());
+        final EventBridge bridgeA = new EventBridge(busA, 64), bridgeB = new EventBridge(busB);
+        bridgeA.forward(String.class, 1, STRINGS);
+        bridgeB.forward(String.class, 1, STRINGS);
+        busB.subscribeEventInline(receivedB::add, String.class);
+        final char[] big = new char[100];
+        Arrays.fill(big, 'x');
+
+        /// Act
+        bridgeB.connect(bridgeA.listen(0));
+        Thread.sleep(100); // Allow bridgeA to accept
+        busA.publishEvent(new String(big));
+        busA.publishEvent("small");
+        Thread.sleep(100); // Allow the bridges to carry the events across
+        bridgeA.close();
+        bridgeB.close();
+        busA.shutdown();
+        busB.shutdown();
+
+        /// Assert
+        // Only the event too large for a frame was left out and forwarding carried on
+        assertEquals(Collections.singletonList("small"), receivedB);
+        assertEquals(1, bridgeA.skipped());
+    }
+
+    @Test
+    public void testReplyPublishedWhileHandlingIsForwarded() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus busA = new EventBus(10), busB = new EventBus(10);
+        final List<String> receivedA = Collections.synchronizedList(new ArrayList<>());
+        final EventBridge bridgeA = new EventBridge(busA), bridgeB = new EventBridge(busB);
+        bridgeA.forward(String.class, 1, STRINGS);
+        bridgeB.forward(String.class, 1, STRINGS);
+        busA.subscribeEventInline(receivedA::add, String.class);
+        // Replies on the thread handing it the event
+        busB.subscribeEventInline(str -> {
+            if(str.equals("ping")) busB.publishEvent("pong");
+        }, String.class);
+
+        /// Act
+        bridgeB.connect(bridgeA.listen(0));
+        Thread.sleep(100); // Allow bridgeA to accept
+        busA.publishEvent("ping");
+        Thread.sleep(100); // Allow the bridges to carry the events across
+        bridgeA.close();
+        bridgeB.close();
+        busA.shutdown();
+        busB.shutdown();
+
+        /// Assert
+        // The reply came back but the event it replied to didn't
+        assertEquals(Arrays.asList("ping", "pong"), receivedA);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testFailedChannelKeepsBridgeRunning() throws Exception {
+        /// Arrange
+        final EventBus busA = new EventBus(10), busB = new EventBus(10);
+        final EventBridge bridgeA = new EventBridge(busA), bridgeB = new EventBridge(busB);
+        // Handed over as if connect() had been called, registering a closed channel fails
+        final Field connected = EventBridge.class.getDeclaredField("connected");
+        connected.setAccessible(true);
+        final SocketChannel closed = SocketChannel.open();
+        closed.close();
+
+        /// Act
+        ((Queue<SocketChannel>) connected.get(bridgeA)).add(closed);
+        bridgeB.connect(bridgeA.listen(0));
+        Thread.sleep(100); // Allow bridgeA to accept
+        final int peers = bridgeA.peers();
+        bridgeA.close();
+        bridgeB.close();
+        busA.shutdown();
+        busB.shutdown();
+
+        /// Assert
+        // The failing channel was left out and the I/O thread carried on accepting
+        assertEquals(1, peers);
+    }
+}
@@ -1,6 +1,31 @@
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import util.MappedEventLog;
+import util.PlaceHolder;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class EventBusTests {
 
@@ -164,4 +189,1374 @@ public class EventBusTests {
         /// Assert
         assertEquals(3, i[0]);
     }
+
+    @Test
+    public void testConcurrentPublishers() throws InterruptedException {
+        /// Arrange
+        final int nPublishers = 4, nEvents = 1_000;
+        final EventBus eventBus = new EventBus(nPublishers * nEvents);
+        final AtomicInteger i = new AtomicInteger();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> i.incrementAndGet(), String.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, publisher = () -> {
+            for(int j = 0; j < nEvents; j++) eventBus.publishEvent("Event");
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        final Thread[] publishers = new Thread[nPublishers];
+        for(int j = 0; j < nPublishers; j++) {
+            publishers[j] = new Thread(publisher);
+            publishers[j].start();
+        }
+        for(Thread publisherThread : publishers) publisherThread.join();
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        assertEquals(nPublishers * nEvents, i.get());
+    }
+
+    @Test
+    public void testSupertypeHandlers() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final int nEvents = 5;
+        final AtomicInteger numbers = new AtomicInteger(), chars = new AtomicInteger();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(n -> numbers.incrementAndGet(), Number.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r2 = () -> {
+            try {
+                eventBus.subscribeEvent(cs -> chars.incrementAndGet(), CharSequence.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1), th2 = new Thread(r2);
+        th1.start();
+        th2.start();
+
+        Thread.sleep(100); // Allow th1 and th2 to subscribe
+        for(int j = 0; j < nEvents; j++) {
+            eventBus.publishEvent(1);
+            eventBus.publishEvent(1L);
+            eventBus.publishEvent("Event");
+        }
+        eventBus.shutdown();
+        th1.join();
+        th2.join();
+
+        /// Assert
+        // Integer and Long are both Numbers and String is a CharSequence
+        assertEquals(nEvents * 2, numbers.get());
+        assertEquals(nEvents, chars.get());
+    }
+
+    @Test
+    public void testPublishBatch() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final int nEvents = 5;
+        final List<Object> received = Collections.synchronizedList(new ArrayList<>());
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(received::add, Object.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        final List<Object> batch = new ArrayList<>();
+        for(int j = 0; j < nEvents; j++) {
+            batch.add("Event " + j);
+            batch.add(j);
+        }
+        eventBus.publishEvents(batch);
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // Events come grouped by class, each group in publishing order
+        assertEquals(Arrays.asList("Event 0", "Event 1", "Event 2", "Event 3", "Event 4", 0, 1, 2, 3, 4), received);
+    }
+
+    @Test
+    public void testDiscardedBatchEvents() throws InterruptedException {
+        /// Arrange
+        final int maxPending = 5;
+        final EventBus eventBus = new EventBus(maxPending);
+        final AtomicInteger i = new AtomicInteger();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> i.incrementAndGet(), String.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        final String[] batch = new String[maxPending * 2];
+        Arrays.fill(batch, "Event");
+        eventBus.publishEvents(batch);
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // The whole batch is enqueued before the handler is woken so the newest ones are dropped
+        assertEquals(maxPending, i.get());
+    }
+
+    @Test
+    public void testBatchSubscription() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final int nEvents = 10, maxBatch = 4;
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEventBatch(batch -> batchSizes.add(batch.size()), String.class, maxBatch);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        final String[] events = new String[nEvents];
+        Arrays.fill(events, "Event");
+        eventBus.publishEvents(events);
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // All events were pending on the first wake up so they are handed over in full batches
+        assertEquals(Arrays.asList(4, 4, 2), batchSizes);
+    }
+
+    @Test
+    public void testDropOldestPolicy() throws InterruptedException {
+        /// Arrange
+        final int maxPending = 5;
+        final EventBus eventBus = new EventBus(maxPending);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(received::add, Integer.class,
+                        new SubscriptionOptions<Integer>().name("oldest").overflow(OverflowPolicy.DROP_OLDEST));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        final Integer[] batch = new Integer[maxPending * 2];
+        for(int j = 0; j < batch.length; j++) batch[j] = j;
+        eventBus.publishEvents(batch);
+        final Map<String, Long> dropped = eventBus.droppedEvents();
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // Only the newest events were kept and the others were counted as dropped
+        assertEquals(Arrays.asList(5, 6, 7, 8, 9), received);
+        assertEquals(Long.valueOf(maxPending), dropped.get("oldest"));
+    }
+
+    @Test
+    public void testConflatingSubscription() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(5);
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> {
+                    received.add(str);
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        // Ignored for test purposes
+                    }
+                }, String.class, new SubscriptionOptions<String>().conflateBy(str -> str.charAt(0)));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        eventBus.publishEvent("a1");
+        Thread.sleep(100); // Allow th1 to take a1 and hold on to it
+        eventBus.publishEvent("a2");
+        eventBus.publishEvent("b1");
+        eventBus.publishEvent("a3");
+        eventBus.publishEvent("b2");
+        release.countDown();
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // Each key kept only its newest event and its place in the order
+        assertEquals(Arrays.asList("a1", "a3", "b2"), received);
+    }
+
+    @Test
+    public void testPriorityLanes() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(20);
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> {
+                    received.add(str);
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        // Ignored for test purposes
+                    }
+                }, String.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        eventBus.publishEvent("n0");
+        Thread.sleep(100); // Allow th1 to take n0 and hold on to it
+        for(int j = 1; j <= 3; j++) eventBus.publishEvent("n" + j);
+        for(int j = 1; j <= 10; j++) eventBus.publishEvent("u" + j, EventBus.MAX_PRIORITY);
+        release.countDown();
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // Urgent events go first but every few of them a normal one gets its turn
+        assertEquals(Arrays.asList("n0", "u1", "u2", "u3", "u4", "u5", "u6", "u7", "n1", "u8", "u9", "u10", "n2", "n3"), received);
+    }
+
+    @Test
+    public void testBlockPolicy() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(1);
+        final int nEvents = 10;
+        final AtomicInteger i = new AtomicInteger();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> i.incrementAndGet(), String.class,
+                        new SubscriptionOptions<String>().overflow(OverflowPolicy.block(5_000)));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent("Event");
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // Publisher waited for room instead of discarding
+        assertEquals(nEvents, i.get());
+    }
+
+    @Test
+    public void testFailPolicy() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(1);
+        final AtomicInteger i = new AtomicInteger();
+        final PlaceHolder<Boolean> rejected = new PlaceHolder<>();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> i.incrementAndGet(), String.class,
+                        new SubscriptionOptions<String>().name("strict").overflow(OverflowPolicy.FAIL));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        try {
+            eventBus.publishEvents(new String[]{"Event", "Event", "Event"});
+            rejected.value = false;
+        } catch(RejectedExecutionException e) {
+            rejected.value = true;
+        }
+        final Map<String, Long> dropped = eventBus.droppedEvents();
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        assertTrue(rejected.value);
+        assertEquals(1, i.get());
+        assertEquals(Long.valueOf(2), dropped.get("strict"));
+    }
+
+    @Test
+    public void testExecutorSubscriptions() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(100);
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        final int nSubscribers = 50, nEvents = 10;
+        final AtomicInteger i = new AtomicInteger();
+        final List<Integer> ordered = Collections.synchronizedList(new ArrayList<>());
+
+        /// Act
+        for(int j = 0; j < nSubscribers; j++) eventBus.subscribeEvent(it -> i.incrementAndGet(), Integer.class, pool);
+        eventBus.subscribeEvent(ordered::add, Integer.class, pool);
+
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j);
+        eventBus.shutdown();
+        pool.shutdown();
+
+        /// Assert
+        // Two threads served every subscription and each one saw its events in order
+        assertEquals(nSubscribers * nEvents, i.get());
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), ordered);
+    }
+
+    @Test
+    public void testExecutorUnsubscribe() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final ExecutorService pool = Executors.newSingleThreadExecutor();
+        final AtomicInteger i = new AtomicInteger();
+
+        /// Act
+        final EventSubscription subscription = eventBus.subscribeEvent(str -> i.incrementAndGet(), String.class, pool);
+        eventBus.publishEvent("Event");
+        Thread.sleep(100); // Allow the pool to handle it
+        subscription.unsubscribe();
+        eventBus.publishEvent("Event");
+        eventBus.shutdown();
+        pool.shutdown();
+
+        /// Assert
+        assertFalse(subscription.isActive());
+        assertEquals(1, i.get());
+    }
+
+    @Test
+    public void testExecutorShutDownFirst() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final ExecutorService pool = Executors.newSingleThreadExecutor(), other = Executors.newSingleThreadExecutor();
+        final PlaceHolder<Boolean> exited = new PlaceHolder<>();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> {
+                }, String.class);
+                exited.value = true;
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+        final EventSubscription unsubscribed = eventBus.subscribeEvent(str -> {
+        }, String.class, other);
+        eventBus.subscribeEvent(str -> {
+        }, String.class, pool);
+        Thread.sleep(100); // Allow handler to subscribe
+        // Neither pool can run the handlers anymore
+        pool.shutdown();
+        other.shutdown();
+        unsubscribed.unsubscribe();
+        eventBus.shutdown();
+        th1.join(2_000);
+        eventBus.shutdown();
+
+        /// Assert
+        assertTrue(exited.value);
+        assertFalse(unsubscribed.isActive());
+    }
+
+    @Test
+    public void testInlineSubscriptions() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(1);
+        final int nEvents = 100;
+        final AtomicInteger i = new AtomicInteger();
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+
+        /// Act
+        final EventSubscription counter = eventBus.subscribeEventInline(str -> i.incrementAndGet(), String.class);
+        final EventSubscription caller = eventBus.subscribeEventInline(str -> threads.add(Thread.currentThread()), String.class);
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent("Event");
+        final int handled = i.get();
+        counter.unsubscribe();
+        eventBus.publishEvent("Event");
+        eventBus.shutdown();
+
+        /// Assert
+        // Handled by the publisher before publishEvent returned, even with a single pending slot
+        assertEquals(nEvents, handled);
+        assertEquals(nEvents, i.get());
+        assertEquals(Thread.currentThread(), threads.get(0));
+        assertFalse(counter.isActive());
+        assertFalse(caller.isActive());
+    }
+
+    @Test
+    public void testFailingInlineBatch() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        RuntimeException thrown = null;
+
+        // Filtered handlers take a batch one event at a time
+        eventBus.subscribeEventInline(str -> {
+            if(str.equals("b")) throw new IllegalStateException("Failing handler");
+        }, String.class, new SubscriptionOptions<String>().filter(str -> !str.isEmpty()));
+        eventBus.subscribeEventInline(received::add, String.class, new SubscriptionOptions<String>().filter(str -> !str.isEmpty()));
+
+        /// Act
+        try {
+            eventBus.publishEvents(Arrays.asList("a", "b", "c"));
+        } catch(IllegalStateException e) {
+            thrown = e;
+        }
+        eventBus.shutdown();
+
+        /// Assert
+        // The failure reaches the publisher once the rest of the batch was delivered
+        assertTrue(thrown != null);
+        assertEquals(Arrays.asList("a", "b", "c"), received);
+    }
+
+    @Test
+    public void testConsumerGroup() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(100);
+        final int nMembers = 3, nEvents = 60;
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        final Map<Thread, Integer> perMember = new ConcurrentHashMap<>();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(it -> {
+                    received.add(it);
+                    perMember.merge(Thread.currentThread(), 1, Integer::sum);
+                    try {
+                        Thread.sleep(5);
+                    } catch(InterruptedException e) {
+                        // Ignored for test purposes
+                    }
+                }, Integer.class, new SubscriptionOptions<Integer>().group("workers"));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread[] ths = new Thread[nMembers];
+        for(int j = 0; j < nMembers; j++) {
+            ths[j] = new Thread(r1);
+            ths[j].start();
+        }
+
+        Thread.sleep(100); // Allow members to subscribe
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j);
+        eventBus.shutdown();
+        for(Thread th : ths) th.join();
+
+        /// Assert
+        // Every event was handled by exactly one member and the work was spread
+        final List<Integer> sorted = new ArrayList<>(received);
+        Collections.sort(sorted);
+        for(int j = 0; j < nEvents; j++) assertEquals(Integer.valueOf(j), sorted.get(j));
+        assertEquals(nEvents, sorted.size());
+        assertTrue(perMember.size() > 1);
+    }
+
+    @Test
+    public void testOrderedConsumerGroup() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(100);
+        final int nMembers = 3, nKeys = 5, nEvents = 100;
+        final Map<Integer, List<Integer>> byKey = new ConcurrentHashMap<>();
+        final Map<Integer, Thread> keyOwners = new ConcurrentHashMap<>();
+        final AtomicInteger sharedKeys = new AtomicInteger();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(it -> {
+                    byKey.computeIfAbsent(it % nKeys, key -> Collections.synchronizedList(new ArrayList<>())).add(it);
+                    if(keyOwners.putIfAbsent(it % nKeys, Thread.currentThread()) != null
+                            && keyOwners.get(it % nKeys) != Thread.currentThread()) sharedKeys.incrementAndGet();
+                }, Integer.class, new SubscriptionOptions<Integer>().group("ordered").orderBy(it -> it % nKeys));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread[] ths = new Thread[nMembers];
+        for(int j = 0; j < nMembers; j++) {
+            ths[j] = new Thread(r1);
+            ths[j].start();
+        }
+
+        Thread.sleep(100); // Allow members to subscribe
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j);
+        eventBus.shutdown();
+        for(Thread th : ths) th.join();
+
+        /// Assert
+        // Each key stayed with one member, which got its events in publishing order
+        assertEquals(0, sharedKeys.get());
+        for(int key = 0; key < nKeys; key++) {
+            final List<Integer> events = byKey.get(key);
+            assertEquals(nEvents / nKeys, events.size());
+            for(int j = 0; j < events.size(); j++) assertEquals(Integer.valueOf(key + j * nKeys), events.get(j));
+        }
+    }
+
+    @Test
+    public void testOrderedGroupMemberLeaves() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(100);
+        final int nMembers = 2, nEvents = 20;
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger failed = new AtomicInteger(-1);
+        final CountDownLatch published = new CountDownLatch(1);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(it -> {
+                    // The first member to get an event leaves with the rest of its events still queued
+                    if(failed.compareAndSet(-1, it)) {
+                        try {
+                            published.await();
+                        } catch(InterruptedException e) {
+                            // Ignored for test purposes
+                        }
+                        throw new IllegalStateException("Failing member");
+                    }
+                    received.add(it);
+                }, Integer.class, new SubscriptionOptions<Integer>().group("ordered").orderBy(it -> it));
+            } catch(InterruptedException | IllegalStateException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread[] ths = new Thread[nMembers];
+        for(int j = 0; j < nMembers; j++) {
+            ths[j] = new Thread(r1);
+            ths[j].start();
+        }
+
+        Thread.sleep(100); // Allow members to subscribe
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j);
+        published.countDown();
+        Thread.sleep(100); // Allow the member left to handle what it was handed
+        final long dropped = eventBus.metrics().handlers().get(0).dropped;
+        eventBus.shutdown();
+        for(Thread th : ths) th.join();
+
+        /// Assert
+        // Only the event the member failed on is missing
+        assertEquals(0, dropped);
+        assertEquals(nEvents - 1, received.size());
+        assertFalse(received.contains(failed.get()));
+    }
+
+    @Test
+    public void testGroupRejectedForInlineAndBatch() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        String inline = null, batch = null;
+
+        /// Act
+        try {
+            eventBus.subscribeEventInline(it -> { }, Integer.class, new SubscriptionOptions<Integer>().group("inline"));
+        } catch(IllegalArgumentException e) {
+            inline = e.getMessage();
+        }
+        try {
+            eventBus.subscribeEventBatch(it -> { }, Integer.class, 10, new SubscriptionOptions<Integer>().group("batch"));
+        } catch(IllegalArgumentException e) {
+            batch = e.getMessage();
+        }
+        final int handlers = eventBus.metrics().handlers().size();
+        eventBus.shutdown();
+
+        /// Assert
+        // Neither subscriber was registered
+        assertTrue(inline != null && inline.startsWith("Inline subscribers"));
+        assertTrue(batch != null && batch.startsWith("Batch subscribers"));
+        assertEquals(0, handlers);
+    }
+
+    @Test
+    public void testTopicSubscriptions() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final List<String> created = Collections.synchronizedList(new ArrayList<>());
+        final List<String> orders = Collections.synchronizedList(new ArrayList<>());
+        final List<Integer> amounts = Collections.synchronizedList(new ArrayList<>());
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeTopic(created::add, "orders.*.created", String.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r2 = () -> {
+            try {
+                eventBus.subscribeTopic(orders::add, "orders.#", String.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r3 = () -> {
+            try {
+                eventBus.subscribeTopic(amounts::add, "orders.#", Integer.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1), th2 = new Thread(r2), th3 = new Thread(r3);
+        th1.start();
+        th2.start();
+        th3.start();
+
+        Thread.sleep(100); // Allow threads to subscribe
+        eventBus.publishTopic("orders.eu.created", "A");
+        eventBus.publishTopic("orders.eu.created", "B");
+        eventBus.publishTopic("orders.us.shipped", "C");
+        eventBus.publishTopic("orders", "D");
+        eventBus.publishTopic("orders.eu.created.late", "E");
+        eventBus.publishTopic("invoices.eu.created", "F");
+        eventBus.publishTopic("orders.eu.created", 7);
+        eventBus.shutdown();
+        th1.join();
+        th2.join();
+        th3.join();
+
+        /// Assert
+        // * is exactly one level, # is any number of them and the event must be of the subscribed type
+        assertEquals(Arrays.asList("A", "B"), created);
+        assertEquals(Arrays.asList("A", "B", "C", "D", "E"), orders);
+        assertEquals(Collections.singletonList(7), amounts);
+    }
+
+    @Test
+    public void testPublisherSideFilters() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(2);
+        final Function<String, Character> firstLetter = str -> str.charAt(0);
+        final List<String> evens = Collections.synchronizedList(new ArrayList<>());
+        final List<String> aWords = Collections.synchronizedList(new ArrayList<>());
+        final List<String> bWords = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch release = new CountDownLatch(1);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> {
+                    evens.add(str);
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        // Ignored for test purposes
+                    }
+                }, String.class, new SubscriptionOptions<String>().name("evens").filter(str -> str.length() % 2 == 0));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r2 = () -> {
+            try {
+                eventBus.subscribeEvent(aWords::add, String.class, new SubscriptionOptions<String>().where(firstLetter, 'a'));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r3 = () -> {
+            try {
+                eventBus.subscribeEvent(bWords::add, String.class, new SubscriptionOptions<String>().where(firstLetter, 'b'));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1), th2 = new Thread(r2), th3 = new Thread(r3);
+        th1.start();
+        th2.start();
+        th3.start();
+
+        Thread.sleep(100); // Allow threads to subscribe
+        eventBus.publishEvent("ab");
+        Thread.sleep(100); // Allow th1 to take ab and hold on to it
+        for(int j = 0; j < 20; j++) eventBus.publishEvent("c");
+        eventBus.publishEvents(Arrays.asList("b", "bb", "c", "cccc"));
+        final Map<String, Long> dropped = eventBus.droppedEvents();
+        release.countDown();
+        eventBus.shutdown();
+        th1.join();
+        th2.join();
+        th3.join();
+
+        /// Assert
+        // Filtered out events never took room, so nothing was dropped even with two pending slots
+        assertEquals(Arrays.asList("ab", "bb", "cccc"), evens);
+        assertEquals(Long.valueOf(0), dropped.get("evens"));
+        assertEquals(Collections.singletonList("ab"), aWords);
+        assertEquals(Arrays.asList("b", "bb"), bWords);
+    }
+
+    @Test
+    public void testFlowPublisher() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(4);
+        final int nEvents = 20;
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+        final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+
+        eventBus.publisher(Integer.class).subscribe(new Flow.Subscriber<Integer>() {
+            @Override
+            public void onSubscribe(Flow.Subscription s) {
+                subscription.set(s);
+            }
+
+            @Override
+            public void onNext(Integer item) {
+                received.add(item);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+            }
+
+            @Override
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        final Runnable r1 = () -> {
+            for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j);
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to fill the mailbox
+        final boolean heldBack = th1.isAlive();
+        final int beforeDemand = received.size();
+        for(int j = 0; j < nEvents; j += 5) {
+            subscription.get().request(5);
+            Thread.sleep(20); // Allow th1 to publish some more
+        }
+        th1.join();
+        eventBus.shutdown();
+
+        /// Assert
+        // Nothing was delivered without demand and the publisher waited for it instead of dropping events
+        assertTrue(heldBack);
+        assertEquals(0, beforeDemand);
+        assertEquals(nEvents, received.size());
+        for(int j = 0; j < nEvents; j++) assertEquals(Integer.valueOf(j), received.get(j));
+        assertEquals(0, completed.getCount());
+    }
+
+    // Deleted with the logs in them after each test
+    @Rule
+    public final TemporaryFolder logDirs = new TemporaryFolder();
+
+    private static final EventSerializer<String> STRINGS = new EventSerializer<String>() {
+        @Override
+        public byte[] serialize(String event) {
+            return event.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String deserialize(byte[] bytes) {
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    @Test
+    public void testReplayLog() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final int nLogged = 100, nLive = 5;
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        // Small segments so the log rolls over several times
+        eventBus.enableLog(String.class, new MappedEventLog(logDirs.newFolder().toPath(), 256, 1 << 20, Long.MAX_VALUE), STRINGS);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(received::add, String.class, new SubscriptionOptions<String>().replayFrom(0));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        for(int j = 0; j < nLogged / 2; j++) eventBus.publishEvent("Event" + j);
+        final List<String> batch = new ArrayList<>();
+        for(int j = nLogged / 2; j < nLogged; j++) batch.add("Event" + j);
+        eventBus.publishEvents(batch);
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to replay and subscribe
+        for(int j = nLogged; j < nLogged + nLive; j++) eventBus.publishEvent("Event" + j);
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        // Everything published before subscribing came from the log, far more than maxPending, then live ones
+        assertEquals(nLogged + nLive, received.size());
+        for(int j = 0; j < nLogged + nLive; j++) assertEquals("Event" + j, received.get(j));
+    }
+
+    @Test
+    public void testReplayLogRetention() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final int nEvents = 200;
+        final List<String> fromOffset = Collections.synchronizedList(new ArrayList<>());
+        final List<String> fromTimestamp = Collections.synchronizedList(new ArrayList<>());
+        // Keeps 4 segments of 256 bytes at most
+        final MappedEventLog log = new MappedEventLog(logDirs.newFolder().toPath(), 256, 1024, Long.MAX_VALUE);
+        eventBus.enableLog(String.class, log, STRINGS);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(fromOffset::add, String.class, new SubscriptionOptions<String>().replayFrom(0));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r2 = () -> {
+            try {
+                eventBus.subscribeEvent(fromTimestamp::add, String.class,
+                        new SubscriptionOptions<String>().replaySince(System.currentTimeMillis() + 60_000));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent("Event" + j);
+        final long firstKept = log.firstSeq();
+        final Thread th1 = new Thread(r1), th2 = new Thread(r2);
+        th1.start();
+        th2.start();
+        Thread.sleep(100); // Allow threads to replay and subscribe
+        eventBus.shutdown();
+        th1.join();
+        th2.join();
+
+        /// Assert
+        // The oldest segments expired, what is left is the newest events without gaps
+        assertTrue(firstKept > 0);
+        assertEquals(nEvents - firstKept, fromOffset.size());
+        for(int j = 0; j < fromOffset.size(); j++) assertEquals("Event" + (firstKept + j), fromOffset.get(j));
+        // Nothing was logged after the timestamp
+        assertTrue(fromTimestamp.isEmpty());
+    }
+
+    @Test
+    public void testLogExpiresByAge() throws IOException {
+        /// Arrange
+        final long maxAge = 1_000;
+        final byte[] record = new byte[100];
+        // Three records per segment
+        final MappedEventLog log = new MappedEventLog(logDirs.newFolder().toPath(), 3 * (record.length + 20), 1 << 20, maxAge);
+
+        /// Act
+        for(int j = 0; j < 3; j++) log.append(0, record);
+        log.append(10, record);
+        final long beforeExpiry = log.firstSeq();
+        // Still fits in the segment being appended to
+        log.append(10 + 2 * maxAge, record);
+
+        /// Assert
+        // The full segment went once its records got too old, without waiting for another one to be started
+        assertEquals(0, beforeExpiry);
+        assertEquals(3, log.firstSeq());
+    }
+
+    @Test
+    public void testReplayWhilePublishing() throws InterruptedException, IOException {
+        /// Arrange
+        final int nEvents = 20_000;
+        final EventBus eventBus = new EventBus(nEvents);
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        eventBus.enableLog(String.class, new MappedEventLog(logDirs.newFolder().toPath(), 1 << 16, 1 << 24, Long.MAX_VALUE), STRINGS);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(received::add, String.class, new SubscriptionOptions<String>().replayFrom(0));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, publisher = () -> {
+            for(int j = 0; j < nEvents; j++) eventBus.publishEvent("Event" + j);
+        };
+
+        /// Act
+        final Thread th1 = new Thread(publisher), th2 = new Thread(r1);
+        th1.start();
+        Thread.sleep(10); // Let some events be logged before subscribing
+        th2.start();
+        th1.join();
+        Thread.sleep(100); // Allow th2 to handle the live ones
+        eventBus.shutdown();
+        th2.join();
+
+        /// Assert
+        // Switching from the log to live delivery neither loses nor repeats an event
+        assertEquals(nEvents, received.size());
+        for(int j = 0; j < nEvents; j++) assertEquals("Event" + j, received.get(j));
+    }
+
+    @Test
+    public void testLoggedPublishersDontWaitForHandlers() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final CountDownLatch handling = new CountDownLatch(1), release = new CountDownLatch(1);
+        final PlaceHolder<Boolean> published = new PlaceHolder<>();
+        final MappedEventLog log = new MappedEventLog(logDirs.newFolder().toPath(), 1 << 12, 1 << 16, Long.MAX_VALUE);
+        eventBus.enableLog(String.class, log, STRINGS);
+
+        eventBus.subscribeEventInline(str -> {
+            if(!str.equals("slow")) return;
+            handling.countDown();
+            try {
+                release.await();
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, String.class);
+
+        /// Act
+        final Thread th1 = new Thread(() -> eventBus.publishEvent("slow"));
+        th1.start();
+        handling.await();
+        final Thread th2 = new Thread(() -> {
+            eventBus.publishEvent("fast");
+            published.value = true;
+        });
+        th2.start();
+        th2.join(1_000);
+        final long logged = log.nextSeq();
+        release.countDown();
+        th1.join();
+        th2.join();
+        eventBus.shutdown();
+
+        /// Assert
+        // The log lock is not held while the first publisher runs the handler
+        assertEquals(Boolean.TRUE, published.value);
+        assertEquals(2, logged);
+    }
+
+    @Test
+    public void testFailingReplaySubscriber() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final CountDownLatch replaying = new CountDownLatch(1), appended = new CountDownLatch(1);
+        eventBus.enableLog(String.class, new MappedEventLog(logDirs.newFolder().toPath(), 1 << 12, 1 << 16, Long.MAX_VALUE), STRINGS);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> {
+                    if(str.equals("fails")) throw new IllegalStateException("Failing subscriber");
+                    replaying.countDown();
+                    try {
+                        appended.await();
+                    } catch(InterruptedException e) {
+                        // Ignored for test purposes
+                    }
+                }, String.class, new SubscriptionOptions<String>().replayFrom(0));
+            } catch(InterruptedException | IllegalStateException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        eventBus.publishEvent("first");
+        final Thread th1 = new Thread(r1);
+        th1.start();
+        replaying.await();
+        // Only read once the subscriber catches up with what was appended during the first pass
+        eventBus.publishEvent("fails");
+        appended.countDown();
+        th1.join();
+        final Thread th2 = new Thread(() -> {
+            try {
+                eventBus.shutdown();
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        });
+        th2.start();
+        th2.join(1_000);
+
+        /// Assert
+        // The failed subscriber was no longer counted as running
+        assertFalse(th2.isAlive());
+    }
+
+    @Test
+    public void testOversizedLoggedBatch() throws InterruptedException, IOException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10);
+        final List<Object> received = Collections.synchronizedList(new ArrayList<>());
+        final MappedEventLog log = new MappedEventLog(logDirs.newFolder().toPath(), 256, 1 << 12, Long.MAX_VALUE);
+        eventBus.enableLog(String.class, log, STRINGS);
+        eventBus.subscribeEventInline(received::add, String.class);
+        eventBus.subscribeEventInline(received::add, Integer.class);
+        final char[] big = new char[1_000];
+        Arrays.fill(big, 'x');
+        RuntimeException thrown = null;
+
+        /// Act
+        try {
+            eventBus.publishEvents(Arrays.asList("a", 1, "b", new String(big)));
+        } catch(IllegalArgumentException e) {
+            thrown = e;
+        }
+        final Map<Class<?>, Long> published = eventBus.metrics().published();
+        eventBus.shutdown();
+
+        /// Assert
+        // The strings were neither logged, delivered nor counted, the rest of the batch was
+        assertTrue(thrown != null);
+        assertEquals(0, log.nextSeq());
+        assertEquals(Collections.singletonList(1), received);
+        assertEquals(0L, (long) published.getOrDefault(String.class, 0L));
+        assertEquals(1L, (long) published.get(Integer.class));
+    }
+
+    @Test
+    public void testTumblingWindow() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(1);
+        final int nEvents = 1_000;
+        final List<WindowSummary> summaries = Collections.synchronizedList(new ArrayList<>());
+
+        /// Act
+        eventBus.subscribeWindow(summaries::add, String.class,
+                WindowOptions.<String>tumbling(200).value(String::length).groupBy(str -> str.charAt(0)));
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j % 2 == 0 ? "a" : "bb");
+        Thread.sleep(500); // Allow the window to close
+        eventBus.shutdown();
+
+        /// Assert
+        // One call per window, not per event, with every event folded in its group
+        assertTrue(summaries.size() <= 2);
+        long as = 0, bs = 0;
+        double sum = 0;
+        for(WindowSummary summary : summaries) {
+            if(summary.get('a') != null) as += summary.get('a').count;
+            if(summary.get('b') != null) bs += summary.get('b').count;
+            sum += summary.total().sum;
+        }
+        assertEquals(nEvents / 2, as);
+        assertEquals(nEvents / 2, bs);
+        assertEquals(nEvents / 2 * 3, sum, 0);
+    }
+
+    @Test
+    public void testSlidingWindow() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(1);
+        final int nEvents = 100;
+        final List<WindowSummary> summaries = Collections.synchronizedList(new ArrayList<>());
+
+        /// Act
+        eventBus.subscribeWindow(summaries::add, Integer.class, WindowOptions.<Integer>sliding(300, 100).value(it -> it));
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j);
+        Thread.sleep(600); // Allow every window holding the events to close
+        eventBus.shutdown();
+
+        /// Assert
+        // Each event is in the three windows overlapping the slide it was published in
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+        for(WindowSummary summary : summaries) {
+            count += summary.get(null).count;
+            min = Math.min(min, summary.get(null).min);
+            max = Math.max(max, summary.get(null).max);
+        }
+        assertEquals(3 * nEvents, count);
+        assertEquals(0, min, 0);
+        assertEquals(nEvents - 1, max, 0);
+    }
+
+    @Test
+    public void testWindowFinishedEarly() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(1);
+        final int nBefore = 10, nAfter = 5;
+        final List<WindowSummary> summaries = Collections.synchronizedList(new ArrayList<>());
+        final EventSubscription subscription = eventBus.subscribeWindow(summaries::add, Integer.class,
+                WindowOptions.<Integer>sliding(10_000, 200));
+
+        /// Act
+        for(int j = 0; j < nBefore; j++) eventBus.publishEvent(j);
+        while(summaries.isEmpty()) Thread.sleep(10); // Allow the first slide to be reported
+        for(int j = 0; j < nAfter; j++) eventBus.publishEvent(j);
+        subscription.unsubscribe();
+        eventBus.shutdown(); // Waits for the last window to be reported
+        final long finished = System.currentTimeMillis();
+
+        /// Assert
+        // The last window only has what no window reported yet and it doesn't end in the future
+        final WindowSummary last = summaries.get(summaries.size() - 1);
+        assertEquals(nBefore, summaries.get(0).get(null).count);
+        assertEquals(nAfter, last.get(null).count);
+        assertTrue(last.end <= finished);
+        assertTrue(last.start <= last.end);
+    }
+
+    @Test
+    public void testMulticastRing() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(16);
+        final int nSubscribers = 60, nEvents = 100;
+        final AtomicInteger i = new AtomicInteger();
+        final List<Integer> ordered = Collections.synchronizedList(new ArrayList<>());
+        eventBus.enableMulticast(Integer.class);
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(it -> i.incrementAndGet(), Integer.class);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r2 = () -> {
+            try {
+                eventBus.subscribeEventBatch(ordered::addAll, Integer.class, 7);
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread[] ths = new Thread[nSubscribers + 1];
+        for(int j = 0; j < nSubscribers; j++) (ths[j] = new Thread(r1)).start();
+        (ths[nSubscribers] = new Thread(r2)).start();
+
+        Thread.sleep(200); // Allow every thread to subscribe
+        for(int j = 0; j < nEvents; j++) eventBus.publishEvent(j);
+        eventBus.shutdown();
+        for(Thread th : ths) th.join();
+
+        /// Assert
+        // The ring is much smaller than the number of events so slow readers held publishing back instead of losing events
+        assertEquals(nSubscribers * nEvents, i.get());
+        assertEquals(nEvents, ordered.size());
+        for(int j = 0; j < nEvents; j++) assertEquals(Integer.valueOf(j), ordered.get(j));
+    }
+
+    @Test
+    public void testMetrics() throws InterruptedException {
+        /// Arrange
+        final int maxPending = 5;
+        final EventBus eventBus = new EventBus(maxPending);
+        final int nEvents = 10;
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> { }, String.class, new SubscriptionOptions<String>().name("metered"));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1);
+        th1.start();
+
+        Thread.sleep(100); // Allow th1 to subscribe
+        final String[] batch = new String[nEvents];
+        Arrays.fill(batch, "Event");
+        eventBus.publishEvents(batch);
+        eventBus.publishEvent(1);
+        Thread.sleep(100); // Allow th1 to handle the events
+        final EventBusMetrics metrics = eventBus.metrics();
+        eventBus.shutdown();
+        th1.join();
+
+        /// Assert
+        assertEquals(Long.valueOf(nEvents), metrics.published().get(String.class));
+        // Published events are counted even without subscribers
+        assertEquals(Long.valueOf(1), metrics.published().get(Integer.class));
+        final EventBusMetrics.HandlerMetrics handler = metrics.handler("metered");
+        assertEquals(String.class, handler.eventType);
+        assertEquals(0, handler.pending);
+        assertEquals(maxPending, handler.peakPending);
+        assertEquals(maxPending, handler.handled);
+        assertEquals(nEvents - maxPending, handler.dropped);
+        assertEquals(maxPending, handler.latency.count());
+        assertTrue(handler.latency.percentile(0.5) > 0);
+    }
+
+    @Test
+    public void testNoEventLostOnShutdown() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(10_000);
+        final int nPublishers = 4;
+        final String[] batch = new String[1_000];
+        Arrays.fill(batch, "Event");
+        final AtomicInteger published = new AtomicInteger(), handled = new AtomicInteger();
+
+        final Runnable r1 = () -> {
+            try {
+                // Nothing is dropped for lack of room, publishers wait for it
+                eventBus.subscribeEvent(str -> handled.incrementAndGet(), String.class,
+                        new SubscriptionOptions<String>().overflow(OverflowPolicy.block(10_000)));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, r2 = () -> {
+            try {
+                // Batches keep publishers longer between the shutting down check and queueing
+                while(true) {
+                    eventBus.publishEvents(batch);
+                    published.addAndGet(batch.length);
+                }
+            } catch(IllegalStateException e) {
+                // Shutting down
+            }
+        };
+
+        /// Act
+        final Thread subscriber = new Thread(r1);
+        subscriber.start();
+        // Events published before it subscribed would never reach it
+        while(eventBus.metrics().handlers().isEmpty()) Thread.sleep(10);
+        final Thread[] publishers = new Thread[nPublishers];
+        for(int j = 0; j < nPublishers; j++) {
+            publishers[j] = new Thread(r2);
+            publishers[j].start();
+        }
+        Thread.sleep(100);
+        eventBus.shutdown();
+        for(Thread th : publishers) th.join();
+        subscriber.join();
+
+        /// Assert
+        // Every publish that didn't throw reached the handler before it exited
+        assertEquals(published.get(), handled.get());
+    }
+
+    @Test
+    public void testShutdownWaitsForBlockedPublisher() throws InterruptedException {
+        /// Arrange
+        final EventBus eventBus = new EventBus(1);
+        final int nEvents = 3;
+        final AtomicInteger handled = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+        final Runnable r1 = () -> {
+            try {
+                eventBus.subscribeEvent(str -> {
+                    try {
+                        release.await();
+                    } catch(InterruptedException e) {
+                        // Ignored for test purposes
+                    }
+                    handled.incrementAndGet();
+                }, String.class, new SubscriptionOptions<String>().overflow(OverflowPolicy.block(10_000)));
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        }, publisher = () -> {
+            for(int j = 0; j < nEvents; j++) eventBus.publishEvent("Event");
+        }, shutdown = () -> {
+            try {
+                eventBus.shutdown();
+            } catch(InterruptedException e) {
+                // Ignored for test purposes
+            }
+        };
+
+        /// Act
+        final Thread th1 = new Thread(r1), th2 = new Thread(publisher), th3 = new Thread(shutdown);
+        th1.start();
+        Thread.sleep(100); // Allow th1 to subscribe
+        th2.start();
+        Thread.sleep(100); // Allow th2 to block for room
+        th3.start();
+        Thread.sleep(300); // Shut down waits for th2 meanwhile
+        final long cpuNanos = threads.getThreadCpuTime(th3.getId());
+        final boolean waited = th3.isAlive();
+        release.countDown();
+        th2.join();
+        th3.join();
+        th1.join();
+
+        /// Assert
+        // Shutting down slept rather than spun while the publisher was blocked, and nothing it published was lost
+        assertTrue(waited);
+        assertTrue(cpuNanos < 100_000_000L);
+        assertEquals(nEvents, handled.get());
+    }
 }
@@ -2,7 +2,11 @@ import org.junit.Test;
 import util.Helper;
 import util.PlaceHolder;
 
+import java.lang.reflect.Field;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.junit.Assert.*;
 
@@ -238,4 +242,185 @@ public class KeyedExchangerTests {
         // Thread 3 doesn't get anything with the same id because it was already removed
         assertFalse(resB.value.isPresent());
     }
+
+    @Test
+    public void testExchangeManyKeys() throws InterruptedException {
+        /// Arrange
+        final int nKeys = 200;
+        final String[] received = new String[2 * nKeys];
+
+        /// Act
+        for(int j = 0; j < 2 * nKeys; j++) {
+            final int id = j / 2, me = j;
+            helper.createAndStart(() -> received[me] = trader.exchange(id, "Thread " + me, 5_000).orElse(null));
+        }
+
+        helper.join();
+
+        /// Assert
+        // Every pair of threads sharing a key traded with each other and nobody else
+        for(int j = 0; j < 2 * nKeys; j++) assertEquals("Thread " + (j ^ 1), received[j]);
+    }
+
+    @Test
+    public void testExchangeAfterRemovals() throws InterruptedException {
+        /// Arrange
+        // A single stripe keeps every key in the same table
+        final KeyedExchanger<String> single = new KeyedExchanger<>(1);
+        final int nKeys = 64;
+        final String[] waited = new String[nKeys];
+        final String[] traded = new String[nKeys];
+
+        /// Act
+        // Odd keys time out and leave the table while even keys are still in it
+        for(int j = 0; j < nKeys; j++) {
+            final int key = j;
+            helper.createAndStart(() -> waited[key] = single.exchange(key, "Waiter " + key, key % 2 == 0 ? 5_000 : 100).orElse(null));
+        }
+        Thread.sleep(500);
+        for(int j = 0; j < nKeys; j += 2) {
+            final int key = j;
+            helper.createAndStart(() -> traded[key] = single.exchangeNow(key, "Trader " + key).orElse(null));
+        }
+
+        helper.join();
+
+        /// Assert
+        for(int j = 0; j < nKeys; j++) {
+            assertEquals(j % 2 == 0 ? "Trader " + j : null, waited[j]);
+            assertEquals(j % 2 == 0 ? "Waiter " + j : null, traded[j]);
+        }
+    }
+
+    @Test
+    public void testExchangeHotKey() throws InterruptedException {
+        /// Arrange
+        final int nThreads = 32, nRounds = 200;
+        final String[][] received = new String[nThreads][nRounds];
+        final long deadline = System.currentTimeMillis() + 2_000;
+
+        /// Act
+        // Every thread exchanges on the same key over and over so it turns hot
+        for(int i = 0; i < nThreads; i++) {
+            final int me = i;
+            helper.createAndStart(() -> {
+                for(int r = 0; r < nRounds && System.currentTimeMillis() < deadline; r++)
+                    received[me][r] = trader.exchange(0, me + ":" + r, 100).orElse(null);
+            });
+        }
+
+        helper.join();
+
+        /// Assert
+        // Whatever a thread got came from a thread that got its data back in the same exchange
+        int exchanges = 0;
+        for(int i = 0; i < nThreads; i++) {
+            for(int r = 0; r < nRounds; r++) {
+                if(received[i][r] == null) continue;
+                final String[] other = received[i][r].split(":");
+                assertEquals(i + ":" + r, received[Integer.parseInt(other[0])][Integer.parseInt(other[1])]);
+                exchanges++;
+            }
+        }
+        assertTrue(exchanges > 0);
+    }
+
+    @Test
+    public void testArenaInflatesAndDeflates() throws Exception {
+        /// Arrange
+        // A single stripe whose key gets an arena the first time its lock is found taken
+        final KeyedExchanger<String> hot = new KeyedExchanger<>(1, 1, 2);
+        final Field stripes = KeyedExchanger.class.getDeclaredField("stripes");
+        stripes.setAccessible(true);
+        final Object stripe = ((Object[]) stripes.get(hot))[0];
+        final Field monitor = stripe.getClass().getDeclaredField("monitor");
+        monitor.setAccessible(true);
+        final ReentrantLock lock = (ReentrantLock) monitor.get(stripe);
+        final PlaceHolder<Optional<String>> res = new PlaceHolder<>();
+
+        /// Act
+        // Holding the stripe lock makes the exchange find it contended
+        lock.lock();
+        helper.createAndStart(() -> res.value = hot.exchange(0, "Thread", 5_000));
+        while(!lock.hasQueuedThreads()) Thread.sleep(10);
+        lock.unlock();
+        while(!hot.hasArena(0)) Thread.sleep(10);
+        final boolean inflated = hot.hasArena(0);
+        final Optional<String> matched = hot.exchange(0, "Main", 5_000);
+        helper.join();
+
+        final CompletableFuture<Optional<String>> waiting = hot.exchangeAsync(0, "Async", 5, TimeUnit.SECONDS);
+        final Optional<String> matchedAsync = hot.exchange(0, "Sync", 5_000);
+        final boolean stillInflated = hot.hasArena(0);
+
+        // Nobody waiting gives the key back to the stripe table
+        final Optional<String> alone = hot.exchangeNow(0, "Alone");
+        final boolean deflated = !hot.hasArena(0);
+        final CompletableFuture<Optional<String>> afterwards = hot.exchangeAsync(0, "After", 5, TimeUnit.SECONDS);
+        final Optional<String> matchedAfterwards = hot.exchange(0, "Again", 5_000);
+
+        /// Assert
+        assertTrue(inflated);
+        assertEquals(Optional.of("Thread"), matched);
+        assertEquals(Optional.of("Main"), res.value);
+        assertEquals(Optional.of("Async"), matchedAsync);
+        assertEquals(Optional.of("Sync"), waiting.get(1, TimeUnit.SECONDS));
+        assertTrue(stillInflated);
+        assertFalse(alone.isPresent());
+        assertTrue(deflated);
+        assertEquals(Optional.of("After"), matchedAfterwards);
+        assertEquals(Optional.of("Again"), afterwards.get(1, TimeUnit.SECONDS));
+        assertFalse(hot.hasArena(0));
+    }
+
+    @Test
+    public void testExchangeAsyncSubMillisecondTimeout() throws Exception {
+        /// Act
+        // Waits for its timeout instead of giving up at once as if it were zero
+        final CompletableFuture<Optional<String>> quick = trader.exchangeAsync(1, "Quick", 900, TimeUnit.MICROSECONDS);
+        final boolean doneAtOnce = quick.isDone();
+        final Optional<String> result = quick.get(1, TimeUnit.SECONDS);
+
+        /// Assert
+        assertFalse(doneAtOnce);
+        assertEquals(Optional.empty(), result);
+    }
+
+    @Test
+    public void testExchangeAsync() throws Exception {
+        /// Arrange
+        final int nKeys = 10_000;
+        final PlaceHolder<Optional<String>> res = new PlaceHolder<>();
+        final PlaceHolder<Optional<String>> waiter = new PlaceHolder<>();
+        final PlaceHolder<Thread> completedOn = new PlaceHolder<>();
+
+        /// Act
+        // Waiting asynchronously takes no thread
+        final CompletableFuture<Optional<String>> waiting = trader.exchangeAsync(1, "Async", 5, TimeUnit.SECONDS);
+        waiting.thenRun(() -> completedOn.value = Thread.currentThread());
+        helper.createAndStart(() -> res.value = trader.exchange(1, "Thread", 5_000));
+        helper.createAndStart(() -> waiter.value = trader.exchange(2, "Waiter", 5_000));
+        Thread.sleep(500);
+        final CompletableFuture<Optional<String>> immediate = trader.exchangeAsync(2, "Now", 5, TimeUnit.SECONDS);
+        helper.join();
+
+        final CompletableFuture<Optional<String>> expired = trader.exchangeAsync(3, "Alone", 100, TimeUnit.MILLISECONDS);
+
+        final CompletableFuture<?>[] pending = new CompletableFuture<?>[nKeys];
+        for(int j = 0; j < nKeys; j++) pending[j] = trader.exchangeAsync(1000 + j, "Pending " + j, 5, TimeUnit.SECONDS);
+        for(int j = 0; j < nKeys; j++) trader.exchangeNow(1000 + j, "Partner " + j);
+
+        /// Assert
+        // Completed by the thread that switched
+        assertEquals(Optional.of("Thread"), waiting.get());
+        assertEquals(Optional.of("Async"), res.value);
+        assertNotNull(completedOn.value);
+        assertNotEquals(Thread.currentThread(), completedOn.value);
+        // A thread was already waiting so it completed on the spot
+        assertTrue(immediate.isDone());
+        assertEquals(Optional.of("Waiter"), immediate.get());
+        assertEquals(Optional.of("Now"), waiter.value);
+        assertEquals(Optional.empty(), expired.get(1, TimeUnit.SECONDS));
+        for(int j = 0; j < nKeys; j++) assertEquals(Optional.of("Partner " + j), pending[j].getNow(null));
+    }
 }
@@ -0,0 +1,119 @@
+import org.junit.Test;
+import util.Helper;
+import util.PlaceHolder;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class TwoLockMessageQueueTests {
+    private final Helper helper = new Helper();
+    private final TwoLockMessageQueue<String> msgQ = new TwoLockMessageQueue<>();
+
+    @Test
+    public void testMessageReceived() throws InterruptedException {
+        /// Arrange
+        final PlaceHolder<Optional<String>> res = new PlaceHolder<>();
+        final PlaceHolder<Boolean> sent = new PlaceHolder<>();
+
+        final Helper.InterruptibleRunnable r1 = () -> sent.value = msgQ.send("Thread 1").await(10_000),
+                r2 = () -> res.value = msgQ.receive(5_000);
+
+        /// Act
+        helper.createAndStart(r1);
+        helper.createAndStart(r2);
+
+        helper.join();
+
+        /// Assert
+        assertTrue(sent.value);
+        assertTrue(res.value.isPresent());
+        assertEquals("Thread 1", res.value.get());
+    }
+
+    @Test
+    public void testMessageNotReceived() throws InterruptedException {
+        /// Arrange
+        final PlaceHolder<Optional<String>> res = new PlaceHolder<>();
+
+        final Helper.InterruptibleRunnable r1 = () -> res.value = msgQ.receive(500);
+
+        /// Act
+        helper.createAndStart(r1);
+        helper.join();
+
+        /// Assert
+        assertFalse(res.value.isPresent());
+    }
+
+    @Test
+    public void testMessageCanceled() throws InterruptedException {
+        /// Arrange
+        final SendStatus canceled = msgQ.send("Message 1");
+        final SendStatus kept = msgQ.send("Message 2");
+
+        /// Act
+        final boolean wasCanceled = canceled.tryCancel();
+        final Optional<String> first = msgQ.receive(0);
+        final Optional<String> second = msgQ.receive(0);
+
+        /// Assert
+        // Receivers skip it and it can't be cancelled once delivered
+        assertTrue(wasCanceled);
+        assertFalse(canceled.isSent());
+        assertEquals(Optional.of("Message 2"), first);
+        assertFalse(second.isPresent());
+        assertTrue(kept.isSent());
+        assertFalse(kept.tryCancel());
+    }
+
+    @Test
+    public void testMultipleReceiversWaiting() throws InterruptedException {
+        /// Arrange
+        final int nMessages = 20;
+        final Set<String> set = Collections.synchronizedSet(new HashSet<>());
+
+        /// Act & Assert
+        for(int i = 0; i < nMessages; i++) {
+            helper.createAndStart(() -> {
+                Optional<String> v = msgQ.receive(5_000);
+                v.ifPresent(set::add);
+            });
+        }
+
+        for(int i = 0; i < nMessages; i++) assertTrue(msgQ.send("Message" + i).await(1_000));
+
+        helper.join();
+        assertEquals(nMessages, set.size());
+    }
+
+    @Test
+    public void testProducersAndConsumers() throws InterruptedException {
+        /// Arrange
+        final int nProducers = 4, nConsumers = 4, nMessages = 5_000;
+        final List<String> received = Collections.synchronizedList(new ArrayList<>());
+        final List<SendStatus> statuses = Collections.synchronizedList(new ArrayList<>());
+
+        /// Act
+        for(int i = 0; i < nProducers; i++) {
+            final int producer = i;
+            helper.createAndStart(() -> {
+                for(int j = 0; j < nMessages; j++) statuses.add(msgQ.send(producer + ":" + j));
+            });
+        }
+        for(int i = 0; i < nConsumers; i++) {
+            helper.createAndStart(() -> {
+                // Keeps going until nothing came for a while
+                for(Optional<String> v; (v = msgQ.receive(500)).isPresent(); ) received.add(v.get());
+            });
+        }
+
+        helper.join();
+
+        /// Assert
+        // Every message was received exactly once
+        assertEquals(nProducers * nMessages, received.size());
+        assertEquals(nProducers * nMessages, new HashSet<>(received).size());
+        for(SendStatus status : statuses) assertTrue(status.isSent());
+    }
+}